@@ -1,22 +1,106 @@
+import graph.FanOut;
+import graph.TopicManagerSingleton;
+import logging.Log;
+import servlets.BatchPublisher;
 import servlets.ConfLoader;
 import servlets.HtmlLoader;
+import servlets.MetricsExporter;
 import servlets.TopicDisplayer;
+import servlets.TopicEventStreamer;
+import servlets.TopicStateApi;
+import servlets.TopicWebSocket;
+import server.AdmissionControl;
+import server.ExecutionMode;
 import server.HTTPServer;
+import server.IngestServer;
 import server.MyHTTPServer;
+import server.MyNIOHTTPServer;
 
 import java.io.IOException;
 import java.nio.file.Path;
 
 public class Main {
     public static void main(String[] args) throws IOException {
-        HTTPServer server = new MyHTTPServer(8080, 5);
-        server.addServlet("GET", "/publish", new TopicDisplayer());
-        server.addServlet("POST", "/upload", new ConfLoader(Path.of("config_files")));
-        server.addServlet("GET", "/app", new HtmlLoader("html_files"));
+        configureFanOut();
+        HTTPServer server = createServer();
+        // Publishes get threads of their own, uploads and pages cannot take them
+        server.addLane("data", 4, 1000);
+        server.addLane("control", 2, 32);
+        server.addServlet("GET", "/publish", new TopicDisplayer(), "data");
+        server.addServlet("POST", "/publish/batch", new BatchPublisher(), "data");
+        server.addServlet("GET", "/topics", new TopicStateApi(), "data");
+        server.addServlet("POST", "/upload", new ConfLoader(Path.of("config_files")), "control");
+        server.addServlet("GET", "/app", new HtmlLoader("html_files"), "control");
+        server.addServlet("GET", "/events", new TopicEventStreamer());
+        server.addServlet("GET", "/ws", new TopicWebSocket());
+        server.addServlet("GET", "/metrics", new MetricsExporter());
 
         server.start();
+        IngestServer ingestServer = createIngestServer();
         System.in.read();
+        if (ingestServer != null) {
+            ingestServer.close();
+        }
         server.close();
 
     }
+
+    // Chooses the server implementation, e.g. -Dserver.mode=nio for the selector-based server
+    // and -Dserver.threads=virtual to run handlers on virtual threads instead of a fixed pool
+    private static HTTPServer createServer() {
+        int port = Integer.getInteger("server.port", 8080);
+        ExecutionMode executionMode = ExecutionMode.fromName(System.getProperty("server.threads"));
+        int nThreads = Integer.getInteger("server.workers", 5);
+        if ("nio".equalsIgnoreCase(System.getProperty("server.mode"))) {
+            MyNIOHTTPServer server = new MyNIOHTTPServer(port, Integer.getInteger("server.reactors", 1), executionMode, nThreads);
+            server.setAdmissionControl(createAdmissionControl());
+            // Local clients can skip TCP, e.g. -Dserver.unixSocket=/tmp/ptm.sock
+            String unixSocket = System.getProperty("server.unixSocket");
+            if (unixSocket != null && !unixSocket.isEmpty()) {
+                server.setUnixSocketPath(Path.of(unixSocket));
+            }
+            return server;
+        }
+        if (System.getProperty("server.unixSocket") != null) {
+            Log.get(Main.class).warn("server.unixSocket requires server.mode=nio, ignoring it");
+        }
+        MyHTTPServer server = new MyHTTPServer(port, executionMode, nThreads);
+        server.setAdmissionControl(createAdmissionControl());
+        return server;
+    }
+
+    // Overload limits, e.g. -Dserver.rateLimit=20 to allow each client 20 requests per second
+    private static AdmissionControl createAdmissionControl() {
+        AdmissionControl admission = new AdmissionControl();
+        admission.setMaxConnections(Integer.getInteger("server.maxConnections", 1000));
+        admission.setMaxQueuedRequests(Integer.getInteger("server.maxQueue", 200));
+        admission.setRateLimit(Double.parseDouble(System.getProperty("server.rateLimit", "0")),
+                Integer.getInteger("server.rateBurst", 50));
+        admission.setRetryAfter(Integer.getInteger("server.retryAfter", 1));
+        return admission;
+    }
+
+    // Topics with -Dtopic.fanOutThreshold subscribers or more are delivered to them in parallel,
+    // off the publishing thread; 0 delivers every publish on the publishing thread
+    private static void configureFanOut() {
+        int threshold = Integer.getInteger("topic.fanOutThreshold", 64);
+        if (threshold <= 0) {
+            return;
+        }
+        TopicManagerSingleton.get().setFanOut(new FanOut(
+                Integer.getInteger("topic.fanOutWorkers", Runtime.getRuntime().availableProcessors()),
+                threshold,
+                Integer.getInteger("topic.fanOutMaxInFlight", 1024)));
+    }
+
+    // Starts the binary ingest listener next to the HTTP server, -Dingest.port=0 disables it
+    private static IngestServer createIngestServer() {
+        int port = Integer.getInteger("ingest.port", 9090);
+        if (port <= 0) {
+            return null;
+        }
+        IngestServer ingestServer = new IngestServer(port);
+        ingestServer.start();
+        return ingestServer;
+    }
 }
@@ -2,19 +2,20 @@ package configs;
 
 import graph.Agent;
 import graph.Message;
+import graph.Topic;
 import graph.TopicManagerSingleton;
 
 public class DecAgent implements Agent {
 
     private String name;
-    private String[] subs;
-    private String[] pubs;
     private final TopicManagerSingleton.TopicManager topicManager = TopicManagerSingleton.get();
+    private final Topic in;
+    private final Topic out;
     private Double x;
 
     public DecAgent(String[] subs, String[] pubs) {
-        this.subs = subs;
-        this.pubs = pubs;
+        this.in = this.topicManager.getTopic(subs[0]);
+        this.out = this.topicManager.getTopic(pubs[0]);
         this.subscribe();
         this.register();
         this.reset();
@@ -22,11 +23,11 @@ public class DecAgent implements Agent {
     }
 
     private void subscribe() {
-        this.topicManager.getTopic(this.subs[0]).subscribe(this);
+        this.in.subscribe(this);
     }
 
     private void register() {
-        this.topicManager.getTopic(this.pubs[0]).addPublisher(this);
+        this.out.addPublisher(this);
     }
 
     @Override
@@ -44,20 +45,16 @@ public class DecAgent implements Agent {
         if (Double.isNaN(msg.asDouble)) {
             return;
         }
-        if (topic.equals(this.subs[0])) {
+        if (topic.equals(this.in.getName())) {
             this.x = msg.asDouble;
         }
-        this.topicManager.getTopic(this.pubs[0]).publish(new Message(this.x - 1));
+        this.out.publish(new Message(this.x - 1));
         this.reset();
     }
 
     @Override
     public void close() {
-        for (String s : this.subs) {
-            this.topicManager.getTopic(s).unsubscribe(this);
-        }
-        for (String s : this.pubs) {
-            this.topicManager.getTopic(s).removePublisher(this);
-        }
+        this.in.unsubscribe(this);
+        this.out.removePublisher(this);
     }
-}
\ No newline at end of file
+}
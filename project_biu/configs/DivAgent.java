@@ -2,12 +2,14 @@ package configs;
 
 import graph.Agent;
 import graph.Message;
+import graph.Topic;
 import graph.TopicManagerSingleton;
 
 public class DivAgent implements Agent {
     private final String name;
-    private final String[] subs;
-    private final String[] pubs;
+    private final Topic first;
+    private final Topic second;
+    private final Topic out;
     private volatile double x;
     private volatile double y;
     private boolean gotX = false;
@@ -15,18 +17,19 @@ public class DivAgent implements Agent {
 
     public DivAgent(String[] subs, String[] pubs) {
         this.name = "DivAgent";
-        this.subs = subs;
-        this.pubs = pubs;
+        this.first = subs.length >= 2 ? TopicManagerSingleton.get().getTopic(subs[0]) : null;
+        this.second = subs.length >= 2 ? TopicManagerSingleton.get().getTopic(subs[1]) : null;
+        this.out = pubs.length > 0 ? TopicManagerSingleton.get().getTopic(pubs[0]) : null;
         this.x = 0.0;
         this.y = 0.0;
 
-        if (subs.length >= 2) {
-            TopicManagerSingleton.get().getTopic(subs[0]).subscribe(this);
-            TopicManagerSingleton.get().getTopic(subs[1]).subscribe(this);
+        if (first != null) {
+            first.subscribe(this);
+            second.subscribe(this);
         }
 
-        if (pubs.length > 0) {
-            TopicManagerSingleton.get().getTopic(pubs[0]).addPublisher(this);
+        if (out != null) {
+            out.addPublisher(this);
         }
     }
 
@@ -45,23 +48,23 @@ public class DivAgent implements Agent {
 
     @Override
     public void callback(String topic, Message msg) {
-        if (Double.isNaN(msg.asDouble)) {
+        if (Double.isNaN(msg.asDouble) || first == null) {
             return;
         }
 
-        if (topic.equals(subs[0])) {
+        if (topic.equals(first.getName())) {
             x = msg.asDouble;
             gotX = true;
-        } else if (topic.equals(subs[1])) {
+        } else if (topic.equals(second.getName())) {
             y = msg.asDouble;
             gotY = true;
         }
 
-        if (gotX && gotY && pubs.length > 0) {
+        if (gotX && gotY && out != null) {
             if (y != 0.0) {
-                TopicManagerSingleton.get().getTopic(pubs[0]).publish(new Message(x / y));
+                out.publish(new Message(x / y));
             } else {
-                TopicManagerSingleton.get().getTopic(pubs[0]).publish(new Message(Double.NaN));
+                out.publish(new Message(Double.NaN));
             }
             reset();
         }
@@ -69,12 +72,13 @@ public class DivAgent implements Agent {
 
     @Override
     public void close() {
-        for (String s : subs) {
-            TopicManagerSingleton.get().getTopic(s).unsubscribe(this);
+        if (first != null) {
+            first.unsubscribe(this);
+            second.unsubscribe(this);
         }
 
-        for (String s : pubs) {
-            TopicManagerSingleton.get().getTopic(s).removePublisher(this);
+        if (out != null) {
+            out.removePublisher(this);
         }
     }
 }
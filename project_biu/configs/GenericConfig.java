@@ -1,7 +1,12 @@
 package configs;
 
 import graph.Agent;
+import graph.AgentScheduler;
+import graph.OverflowPolicy;
 import graph.ParallelAgent;
+import graph.TopicManagerSingleton;
+import graph.WaitStrategy;
+import logging.Log;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -12,6 +17,13 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class GenericConfig implements Config {
+    private static final Log LOG = Log.get(GenericConfig.class);
+
+    // How idle agent threads wait, e.g. -Dagent.waitStrategy=yield
+    private static final WaitStrategy WAIT_STRATEGY = WaitStrategy.fromName(System.getProperty("agent.waitStrategy"));
+    // Agents share one scheduler across configurations, null when each gets its own thread
+    private static final AgentScheduler SCHEDULER = createScheduler();
+
     private String confFile;
     private List<ParallelAgent> parallelAgents;
 
@@ -33,7 +45,10 @@ public class GenericConfig implements Config {
             }
 
             for (int i = 0; i < lines.size(); i += 3) {
-                String className = lines.get(i);
+                // The class line may carry options, e.g. "configs.PlusAgent overflow=conflate"
+                String[] classLine = lines.get(i).split("\\s+");
+                String className = classLine[0];
+                OverflowPolicy overflowPolicy = parseOverflowPolicy(classLine);
                 String[] subs = lines.get(i + 1).split(",");
                 String[] pubs = lines.get(i + 2).split(",");
 
@@ -41,17 +56,57 @@ public class GenericConfig implements Config {
                     Class<?> agentClass = Class.forName(className);
                     Constructor<?> constructor = agentClass.getDeclaredConstructor(String[].class, String[].class);
                     Agent agent = (Agent) constructor.newInstance(subs, pubs);
-                    ParallelAgent parallelAgent = new ParallelAgent(agent, 10);
+                    // Labels the agent's metrics, stable across reloads of the same file
+                    String id = agent.getName() + "#" + (i / 3);
+                    ParallelAgent parallelAgent = SCHEDULER != null
+                            ? new ParallelAgent(id, agent, 16, SCHEDULER, overflowPolicy)
+                            : new ParallelAgent(id, agent, 16, WAIT_STRATEGY, overflowPolicy);
+                    // Agents subscribe themselves when constructed, deliver through the queue instead
+                    for (String sub : subs) {
+                        if (TopicManagerSingleton.get().containsTopic(sub)) {
+                            parallelAgent.takeOverSubscription(TopicManagerSingleton.get().getTopic(sub));
+                        }
+                    }
+                    parallelAgent.start();
                     parallelAgents.add(parallelAgent);
                 } catch (ClassNotFoundException | NoSuchMethodException |
                          InstantiationException | IllegalAccessException | InvocationTargetException e) {
-                    e.printStackTrace();
+                    LOG.error("Cannot create agent {}", className, e);
                 }
             }
         } catch (IOException e) {
-            System.err.println("Error reading configuration file: " + confFile);
-            e.printStackTrace();
+            LOG.error("Error reading configuration file: {}", confFile, e);
+        }
+    }
+
+    // Reads the options following the class name, BLOCK unless overflow=<policy> says otherwise
+    private static OverflowPolicy parseOverflowPolicy(String[] classLine) {
+        OverflowPolicy policy = OverflowPolicy.BLOCK;
+        for (int i = 1; i < classLine.length; i++) {
+            String option = classLine[i];
+            if (!option.startsWith("overflow=")) {
+                throw new IllegalArgumentException("Unknown agent option: " + option);
+            }
+            try {
+                policy = OverflowPolicy.fromName(option.substring("overflow=".length()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown overflow policy: " + option);
+            }
+        }
+        return policy;
+    }
+
+    // -Dagent.threads=shared (default) runs agents on a pool of -Dagent.workers threads, one per
+    // core by default, "virtual" on virtual threads and "dedicated" on a thread per agent
+    private static AgentScheduler createScheduler() {
+        String mode = System.getProperty("agent.threads", "shared");
+        if (mode.equalsIgnoreCase("dedicated")) {
+            return null;
+        }
+        if (mode.equalsIgnoreCase("virtual")) {
+            return AgentScheduler.virtualThreads();
         }
+        return new AgentScheduler(Integer.getInteger("agent.workers", Runtime.getRuntime().availableProcessors()));
     }
 
     private List<String> readLinesFromFile(String filename) throws IOException {
@@ -59,7 +114,10 @@ public class GenericConfig implements Config {
         try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                lines.add(line);
+                line = line.trim(); // Uploaded files may use CRLF line endings or end with blank lines
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
             }
         }
         return lines;
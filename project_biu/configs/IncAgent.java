@@ -2,24 +2,25 @@ package configs;
 
 import graph.Agent;
 import graph.Message;
+import graph.Topic;
 import graph.TopicManagerSingleton;
 
 public class IncAgent implements Agent {
     private final String name;
-    private final String[] subs;
-    private final String[] pubs;
+    private final Topic in;
+    private final Topic out;
 
     public IncAgent(String[] subs, String[] pubs) {
         this.name = "IncAgent";
-        this.subs = subs;
-        this.pubs = pubs;
+        this.in = subs.length > 0 ? TopicManagerSingleton.get().getTopic(subs[0]) : null;
+        this.out = pubs.length > 0 ? TopicManagerSingleton.get().getTopic(pubs[0]) : null;
 
-        if (subs.length > 0) {
-            TopicManagerSingleton.get().getTopic(subs[0]).subscribe(this);
+        if (in != null) {
+            in.subscribe(this);
         }
 
-        if (pubs.length > 0) {
-            TopicManagerSingleton.get().getTopic(pubs[0]).addPublisher(this);
+        if (out != null) {
+            out.addPublisher(this);
         }
     }
 
@@ -35,22 +36,22 @@ public class IncAgent implements Agent {
 
     @Override
     public void callback(String topic, Message msg) {
-        if (subs.length > 0 && topic.equals(subs[0])) {
+        if (in != null && topic.equals(in.getName())) {
             double value = msg.asDouble;
-            if (!Double.isNaN(value) && pubs.length > 0) {
-                TopicManagerSingleton.get().getTopic(pubs[0]).publish(new Message(value + 1));
+            if (!Double.isNaN(value) && out != null) {
+                out.publish(new Message(value + 1));
             }
         }
     }
 
     @Override
     public void close() {
-        if (subs.length > 0) {
-            TopicManagerSingleton.get().getTopic(subs[0]).unsubscribe(this);
+        if (in != null) {
+            in.unsubscribe(this);
         }
 
-        if (pubs.length > 0) {
-            TopicManagerSingleton.get().getTopic(pubs[0]).removePublisher(this);
+        if (out != null) {
+            out.removePublisher(this);
         }
     }
 }
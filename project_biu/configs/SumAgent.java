@@ -2,6 +2,7 @@ package configs;
 
 import graph.Agent;
 import graph.Message;
+import graph.Topic;
 import graph.TopicManagerSingleton;
 
 import java.util.HashMap;
@@ -9,22 +10,24 @@ import java.util.Map;
 
 public class SumAgent implements Agent {
     private final String name;
-    private final String[] subs;
-    private final String[] pubs;
+    private final Topic[] ins;
+    private final Topic[] outs;
     private final Map<String, Double> inputs;
 
     public SumAgent(String[] subs, String[] pubs) {
         this.name = "SumAgent";
-        this.subs = subs;
-        this.pubs = pubs;
+        this.ins = new Topic[subs.length];
+        this.outs = new Topic[pubs.length];
         this.inputs = new HashMap<>();
 
-        for (String sub : subs) {
-            TopicManagerSingleton.get().getTopic(sub).subscribe(this);
+        for (int i = 0; i < subs.length; i++) {
+            ins[i] = TopicManagerSingleton.get().getTopic(subs[i]);
+            ins[i].subscribe(this);
         }
 
-        for (String pub : pubs) {
-            TopicManagerSingleton.get().getTopic(pub).addPublisher(this);
+        for (int i = 0; i < pubs.length; i++) {
+            outs[i] = TopicManagerSingleton.get().getTopic(pubs[i]);
+            outs[i].addPublisher(this);
         }
 
         reset();
@@ -37,8 +40,8 @@ public class SumAgent implements Agent {
 
     @Override
     public void reset() {
-        for (String sub : subs) {
-            inputs.put(sub, 0.0);
+        for (Topic in : ins) {
+            inputs.put(in.getName(), 0.0);
         }
     }
 
@@ -52,8 +55,8 @@ public class SumAgent implements Agent {
 
         if (allInputsReceived()) {
             double sum = inputs.values().stream().mapToDouble(Double::doubleValue).sum();
-            if (pubs.length > 0) {
-                TopicManagerSingleton.get().getTopic(pubs[0]).publish(new Message(sum));
+            if (outs.length > 0) {
+                outs[0].publish(new Message(sum));
             }
             reset();
         }
@@ -65,12 +68,12 @@ public class SumAgent implements Agent {
 
     @Override
     public void close() {
-        for (String sub : subs) {
-            TopicManagerSingleton.get().getTopic(sub).unsubscribe(this);
+        for (Topic in : ins) {
+            in.unsubscribe(this);
         }
 
-        for (String pub : pubs) {
-            TopicManagerSingleton.get().getTopic(pub).removePublisher(this);
+        for (Topic out : outs) {
+            out.removePublisher(this);
         }
     }
 }
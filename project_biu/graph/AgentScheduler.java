@@ -0,0 +1,79 @@
+package graph;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the mailboxes of many ParallelAgents on a shared pool instead of a thread per agent.
+// An agent with messages waiting is queued for a worker, which drains a batch and moves on;
+// ParallelAgent makes sure at most one drain per agent is queued or running, so each agent
+// still handles its messages one at a time, in order. Idle agents hold no thread at all.
+public final class AgentScheduler implements AutoCloseable {
+    private static final ThreadLocal<AgentScheduler> CURRENT = new ThreadLocal<>();
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    // A fixed pool of daemon threads, e.g. one per core
+    public AgentScheduler(int nThreads) {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be positive");
+        }
+        this.virtual = false;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(nThreads, runnable ->
+                Thread.ofPlatform().name("AgentWorker-" + threadNumber.getAndIncrement())
+                        .daemon(true)
+                        .unstarted(() -> {
+                            CURRENT.set(this);
+                            runnable.run();
+                        }));
+    }
+
+    private AgentScheduler() {
+        this.virtual = true;
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("AgentWorker-", 0).factory());
+    }
+
+    // A virtual thread per drain, bounded by memory instead of a pool size
+    public static AgentScheduler virtualThreads() {
+        return new AgentScheduler();
+    }
+
+    // Returns false if the scheduler is shut down
+    boolean execute(Runnable drain) {
+        try {
+            executor.execute(drain);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    // Whether the calling thread may wait for room in a mailbox. A pool thread must not: every
+    // worker could end up waiting for a drain queued behind it.
+    boolean mayBlockCaller() {
+        return virtual || CURRENT.get() != this;
+    }
+
+    // Whether the calling thread is a pool worker of any scheduler, which must not wait for
+    // work that needs those workers to finish
+    static boolean onPoolThread() {
+        return CURRENT.get() != null;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -5,9 +5,9 @@ import java.util.function.BinaryOperator;
 public class BinOpAgent implements Agent {
 
     private final String name;
-    private final String firstTopic;
-    private final String secondTopic;
-    private final String resultTopic;
+    private final Topic firstTopic;
+    private final Topic secondTopic;
+    private final Topic resultTopic;
     private final BinaryOperator<Double> operator;
     private Double firstMessage;
     private Double secondMessage;
@@ -15,14 +15,14 @@ public class BinOpAgent implements Agent {
 
     public BinOpAgent(String name, String firstTopic, String secondTopic, String resultTopic, BinaryOperator<Double> operator) {
         this.name = name;
-        this.firstTopic = firstTopic.toUpperCase(); // Normalize to uppercase for consistent topic matching
-        this.secondTopic = secondTopic.toUpperCase();
-        this.resultTopic = resultTopic.toUpperCase();
+        this.firstTopic = topicManager.getTopic(firstTopic); // The manager normalizes the names
+        this.secondTopic = topicManager.getTopic(secondTopic);
+        this.resultTopic = topicManager.getTopic(resultTopic);
         this.operator = operator;
         reset();
-        topicManager.getTopic(this.firstTopic).subscribe(this);
-        topicManager.getTopic(this.secondTopic).subscribe(this);
-        topicManager.getTopic(this.resultTopic).addPublisher(this);
+        this.firstTopic.subscribe(this);
+        this.secondTopic.subscribe(this);
+        this.resultTopic.addPublisher(this);
     }
 
     @Override
@@ -38,27 +38,26 @@ public class BinOpAgent implements Agent {
 
     @Override
     public void callback(String topic, Message msg) {
-        String normalizedTopic = topic.toUpperCase();
-
         if (Double.isNaN(msg.asDouble)) return; // Ignore invalid values
 
-        if (normalizedTopic.equals(firstTopic)) {
+        // Topics pass their own, already normalized, name
+        if (topic.equals(firstTopic.getName())) {
             firstMessage = msg.asDouble;
-        } else if (normalizedTopic.equals(secondTopic)) {
+        } else if (topic.equals(secondTopic.getName())) {
             secondMessage = msg.asDouble;
         }
 
         // Only publish when both messages are received and non-zero
         if (firstMessage != 0.0 && secondMessage != 0.0) {
-            topicManager.getTopic(resultTopic).publish(new Message(operator.apply(firstMessage, secondMessage)));
+            resultTopic.publish(new Message(operator.apply(firstMessage, secondMessage)));
             reset();
         }
     }
 
     @Override
     public void close() {
-        topicManager.getTopic(firstTopic).unsubscribe(this);
-        topicManager.getTopic(secondTopic).unsubscribe(this);
-        topicManager.getTopic(resultTopic).removePublisher(this);
+        firstTopic.unsubscribe(this);
+        secondTopic.unsubscribe(this);
+        resultTopic.removePublisher(this);
     }
 }
@@ -0,0 +1,68 @@
+package graph;
+
+import metrics.Counter;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A mailbox keeping only the newest message of each topic. A message published while an older
+// one of its topic is still waiting replaces it and takes its place in line, so the mailbox
+// holds at most one message per subscribed topic and can never overflow.
+final class ConflatingMailbox implements Mailbox {
+    private final Map<String, Message> latest = new ConcurrentHashMap<>();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+    private final Counter replaced;
+
+    // Counts the messages replaced before they were handled
+    ConflatingMailbox(Counter replaced) {
+        this.replaced = replaced;
+    }
+
+    @Override
+    public boolean offer(String topic, Message message, long now) {
+        if (latest.put(topic, message) == null) {
+            order.add(topic);
+        } else {
+            replaced.increment();
+        }
+        return true;
+    }
+
+    // The queue wait of a message is measured from its creation, the mailbox keeps no time
+    @Override
+    public int drain(Handler handler, int max) {
+        int drained = 0;
+        String topic;
+        while (drained < max && (topic = order.poll()) != null) {
+            Message message = latest.remove(topic);
+            if (message != null) {
+                handler.onMessage(topic, message, message.timestamp);
+                drained++;
+            }
+        }
+        return drained;
+    }
+
+    // Never full, so there is never a reason to drop
+    @Override
+    public boolean dropOldest() {
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        latest.clear();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return order.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return latest.size();
+    }
+}
@@ -0,0 +1,105 @@
+package graph;
+
+import logging.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Delivers the messages of topics with many subscribers off the publishing thread.
+// A publish is queued on its topic and the publisher returns at once. One drain per topic hands
+// each message to the subscribers in chunks that run in parallel on a fork-join pool, and moves
+// on to the next message only when every chunk is done, so each subscriber still sees a topic's
+// messages in order. At most maxInFlight messages wait or are being delivered across all topics;
+// beyond that publishers wait, so a burst cannot queue up without bound.
+public class FanOut {
+    private static final Log LOG = Log.get(FanOut.class);
+    private static final int MIN_CHUNK_SIZE = 16; // Fewer subscribers are not worth a task of their own
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final int threshold;
+    private final Semaphore inFlight;
+    private final AtomicInteger overdrawn = new AtomicInteger(); // Messages admitted without a permit
+
+    // Topics with at least threshold subscribers are delivered on a pool of parallelism threads
+    public FanOut(int parallelism, int threshold, int maxInFlight) {
+        if (parallelism <= 0 || threshold <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("Parallelism, threshold and messages in flight must be positive");
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("TopicFanOut-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false); // Daemon threads, the pool lives as long as the application
+        this.parallelism = parallelism;
+        this.threshold = threshold;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    // Whether a topic with this many subscribers is delivered asynchronously
+    boolean appliesTo(int subscribers) {
+        return subscribers >= threshold;
+    }
+
+    // Waits until one more message may be in flight
+    void acquire() {
+        if (ForkJoinTask.getPool() == pool || AgentScheduler.onPoolThread()) {
+            // Some threads must not wait, so such messages may exceed the bound. On the fan-out
+            // pool, a subscriber publishing during a delivery could leave every pool thread
+            // waiting for deliveries only the pool can finish. An agent scheduler worker could
+            // wait for a delivery that is itself waiting for room in a BLOCK mailbox, which only
+            // the scheduler's workers can make.
+            if (!inFlight.tryAcquire()) {
+                overdrawn.incrementAndGet();
+            }
+            return;
+        }
+        inFlight.acquireUninterruptibly();
+    }
+
+    // Called once a message acquired for is delivered or dropped
+    void release() {
+        int n;
+        do {
+            n = overdrawn.get();
+            if (n == 0) {
+                inFlight.release();
+                return;
+            }
+        } while (!overdrawn.compareAndSet(n, n - 1));
+    }
+
+    void execute(Runnable drain) {
+        pool.execute(drain);
+    }
+
+    // Calls every subscriber, on this and other pool threads, and returns when all are done
+    void deliver(String topic, Agent[] subscribers, Message message) {
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, (subscribers.length + parallelism - 1) / parallelism);
+        List<ForkJoinTask<?>> chunks = new ArrayList<>();
+        for (int from = 0; from < subscribers.length; from += chunkSize) {
+            int start = from;
+            int end = Math.min(from + chunkSize, subscribers.length);
+            chunks.add(ForkJoinTask.adapt(() -> callback(topic, subscribers, start, end, message)));
+        }
+        ForkJoinTask.invokeAll(chunks);
+    }
+
+    private static void callback(String topic, Agent[] subscribers, int start, int end, Message message) {
+        for (int i = start; i < end; i++) {
+            try {
+                subscribers[i].callback(topic, message);
+            } catch (RuntimeException e) {
+                // Nobody waits for the publish to see the exception, don't let it skip the rest
+                LOG.warn("Subscriber {} failed", subscribers[i].getName() + " of " + topic, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package graph;
+
+// The messages waiting for one agent. Any thread may offer; only one thread at a time drains.
+interface Mailbox {
+
+    // Receives the messages drained by the consumer
+    interface Handler {
+        void onMessage(String topic, Message message, long enqueuedAt);
+    }
+
+    // Adds a message, returns false if the mailbox is full
+    boolean offer(String topic, Message message, long now);
+
+    // Hands up to max waiting messages to the handler, returns how many it handed over
+    int drain(Handler handler, int max);
+
+    // Drops the oldest waiting message to make room, returns false if there is none to drop
+    boolean dropOldest();
+
+    // Drops the messages waiting now, messages offered later are kept
+    void clear();
+
+    boolean isEmpty();
+
+    int size();
+}
@@ -2,17 +2,25 @@ package graph;
 
 import java.util.Date;
 
+// A value passed between topics and agents. The number is kept as a primitive, the text,
+// bytes and date are only built when someone asks for them, so an agent publishing a result
+// allocates nothing but the message itself.
 public class Message {
-    public final byte[] data;
-    public final String asText;
+    // Wall clock and nanoTime read together once, to turn timestamps into dates
+    private static final long EPOCH_MILLIS = System.currentTimeMillis();
+    private static final long EPOCH_NANOS = System.nanoTime();
+
     public final double asDouble;
-    public final Date date;
+    public final long timestamp; // System.nanoTime() at creation
+
+    // Built on first use; a racing reader at worst builds an equal value again
+    private String text;
+    private byte[] data;
 
     public Message(String text) {
-        this.asText = text;
-        this.data = text.getBytes();
+        this.text = text;
         this.asDouble = parseDouble(text);
-        this.date = new Date();
+        this.timestamp = System.nanoTime();
     }
 
     public Message(byte[] bytes) {
@@ -20,11 +28,36 @@ public class Message {
     }
 
     public Message(double value) {
-        this(Double.toString(value));
+        this.asDouble = value;
+        this.timestamp = System.nanoTime();
+    }
+
+    public String asText() {
+        String t = text;
+        if (t == null) {
+            t = Double.toString(asDouble);
+            text = t;
+        }
+        return t;
+    }
+
+    public byte[] getData() {
+        byte[] d = data;
+        if (d == null) {
+            d = asText().getBytes();
+            data = d;
+        }
+        return d;
+    }
+
+    // The wall clock time of the creation, derived from the timestamp against a fixed base so
+    // every call returns the same date
+    public Date getDate() {
+        return new Date(EPOCH_MILLIS + Math.floorDiv(timestamp - EPOCH_NANOS, 1_000_000L));
     }
 
     public String toString() {
-        return String.format("Message: text='%s', double=%f, date=%s", asText, asDouble, date);
+        return String.format("Message: text='%s', double=%f, date=%s", asText(), asDouble, getDate());
     }
 
     private static double parseDouble(String s) {
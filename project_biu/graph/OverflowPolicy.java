@@ -0,0 +1,23 @@
+package graph;
+
+import java.util.Locale;
+
+// What a ParallelAgent does with a message published while its mailbox is full.
+//   BLOCK        the publisher waits for room, up to a timeout, then the message is dropped.
+//                A publisher that is itself a worker of a shared (platform thread) AgentScheduler
+//                never waits, every worker could end up waiting for a drain queued behind it;
+//                its message is dropped right away, as with DROP_NEWEST
+//   DROP_NEWEST  the new message is dropped right away
+//   DROP_OLDEST  the oldest waiting message is dropped to make room
+//   CONFLATE     only the newest message of each topic is kept, see ConflatingMailbox
+public enum OverflowPolicy {
+    BLOCK,
+    DROP_NEWEST,
+    DROP_OLDEST,
+    CONFLATE;
+
+    // Parses a name as written in configuration files, e.g. "drop-oldest"
+    public static OverflowPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
@@ -1,22 +1,91 @@
 package graph;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import logging.Log;
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-public class ParallelAgent implements Agent, AutoCloseable {
-    private static final Logger LOGGER = Logger.getLogger(ParallelAgent.class.getName());
-    private static final String DIVIDER = "::";
+// Runs an agent asynchronously, fed through a lock-free mailbox. Publishers only copy the topic
+// and message into a preallocated slot. The mailbox is drained in batches, either by a thread
+// of the agent's own that waits for more according to its WaitStrategy, or by the workers of
+// an AgentScheduler shared with other agents. What happens when the mailbox is full is set by
+// the agent's OverflowPolicy. An agent with a thread of its own only runs once start() is called.
+public final class ParallelAgent implements Agent, AutoCloseable {
+    private static final Log LOG = Log.get(ParallelAgent.class);
     private static final int QUEUE_TIMEOUT_SECONDS = 5;
+    private static final int BATCH_SIZE = 64;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long DROP_WARNING_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+    private static final String QUEUE_DEPTH = "agent_queue_depth";
+    private static final String QUEUE_WAIT = "agent_queue_wait_seconds";
+    private static final String CALLBACK_TIME = "agent_callback_seconds";
+    private static final String DROPPED = "agent_dropped_total";
 
-    private final BlockingQueue<Message> messageQueue;
+    private final String id; // Tells apart agents of the same class in metrics and thread names
+    private final Mailbox mailbox;
+    private final Mailbox.Handler handler = this::handleMessage;
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
     private final Agent delegateAgent;
-    private final Thread processingThread;
+    private final Thread processingThread; // Null when run by a scheduler
+    private final AgentScheduler scheduler;
+    private final List<Topic> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = this::drainOnScheduler;
     private volatile boolean isRunning;
+    private volatile boolean parked; // Set while the processing thread waits with PARK
+    private final Histogram queueWait;
+    private final Histogram callbackTime;
+    private final Counter dropped;
+    private final AtomicLong lastDropWarning = new AtomicLong(System.nanoTime() - DROP_WARNING_INTERVAL_NANOS);
 
     public ParallelAgent(Agent delegateAgent, int queueCapacity) {
+        this(delegateAgent, queueCapacity, WaitStrategy.PARK);
+    }
+
+    // The capacity is rounded up to a power of two
+    public ParallelAgent(Agent delegateAgent, int queueCapacity, WaitStrategy waitStrategy) {
+        this(delegateAgent, queueCapacity, waitStrategy, OverflowPolicy.BLOCK);
+    }
+
+    public ParallelAgent(Agent delegateAgent, int queueCapacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+        this(null, delegateAgent, queueCapacity, waitStrategy, overflowPolicy);
+    }
+
+    // The id labels the agent's metrics, e.g. "PlusAgent#2"; it must be unique among open agents
+    public ParallelAgent(String id, Agent delegateAgent, int queueCapacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+        this(id, delegateAgent, queueCapacity, waitStrategy, overflowPolicy, null);
+    }
+
+    // Runs the agent on the workers of a scheduler instead of a thread of its own
+    public ParallelAgent(Agent delegateAgent, int queueCapacity, AgentScheduler scheduler) {
+        this(delegateAgent, queueCapacity, scheduler, OverflowPolicy.BLOCK);
+    }
+
+    public ParallelAgent(Agent delegateAgent, int queueCapacity, AgentScheduler scheduler, OverflowPolicy overflowPolicy) {
+        this(null, delegateAgent, queueCapacity, scheduler, overflowPolicy);
+    }
+
+    public ParallelAgent(String id, Agent delegateAgent, int queueCapacity, AgentScheduler scheduler, OverflowPolicy overflowPolicy) {
+        this(id, delegateAgent, queueCapacity, WaitStrategy.PARK, overflowPolicy, scheduler);
+        if (scheduler == null) {
+            throw new IllegalArgumentException("Scheduler cannot be null");
+        }
+    }
+
+    // Without an id the agent is numbered in order of creation
+    private ParallelAgent(String id, Agent delegateAgent, int queueCapacity, WaitStrategy waitStrategy,
+                          OverflowPolicy overflowPolicy, AgentScheduler scheduler) {
         if (delegateAgent == null) {
             throw new IllegalArgumentException("Delegate agent cannot be null");
         }
@@ -25,12 +94,38 @@ public class ParallelAgent implements Agent, AutoCloseable {
         }
 
         this.delegateAgent = delegateAgent;
-        this.messageQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.id = id != null ? id : delegateAgent.getName() + "#" + NEXT_ID.getAndIncrement();
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        this.scheduler = scheduler;
         this.isRunning = true;
+
+        MetricsRegistry metrics = MetricsRegistry.get();
+        this.queueWait = metrics.histogram(QUEUE_WAIT, "Time messages wait in the agent queue.", 1e-9, "agent", this.id);
+        this.callbackTime = metrics.histogram(CALLBACK_TIME, "Time the agent takes to handle a message.", 1e-9, "agent", this.id);
+        this.dropped = metrics.counter(DROPPED, "Messages dropped or replaced by the overflow policy of the agent.", "agent", this.id);
+        // The capacity of a conflating mailbox is the number of topics it sees
+        this.mailbox = overflowPolicy == OverflowPolicy.CONFLATE
+                ? new ConflatingMailbox(dropped)
+                : new RingMailbox(queueCapacity);
+        metrics.gauge(QUEUE_DEPTH, "Messages waiting in the agent queue.", mailbox::size, "agent", this.id);
+
+        if (scheduler != null) {
+            this.processingThread = null;
+            return;
+        }
         this.processingThread = new Thread(this::processMessages);
-        this.processingThread.setName("MessageProcessor-" + delegateAgent.getName());
+        this.processingThread.setName("MessageProcessor-" + this.id);
         this.processingThread.setDaemon(true);
-        this.processingThread.start();
+    }
+
+    // Starts the agent's own thread, if it has one. Called once after construction, so the
+    // thread never runs on a partly built agent; messages published before wait in the mailbox.
+    public ParallelAgent start() {
+        if (processingThread != null) {
+            processingThread.start();
+        }
+        return this;
     }
 
     @Override
@@ -38,9 +133,21 @@ public class ParallelAgent implements Agent, AutoCloseable {
         return delegateAgent.getName();
     }
 
+    public String getId() {
+        return id;
+    }
+
+    // Delivers a topic the delegate subscribed to itself, agents usually do in their constructor,
+    // through this agent's mailbox instead. The subscription ends when this agent is closed.
+    public void takeOverSubscription(Topic topic) {
+        if (topic.replaceSubscriber(delegateAgent, this)) {
+            subscriptions.add(topic);
+        }
+    }
+
     @Override
     public void reset() {
-        messageQueue.clear();
+        mailbox.clear();
         delegateAgent.reset();
     }
 
@@ -48,54 +155,167 @@ public class ParallelAgent implements Agent, AutoCloseable {
     public void callback(String topic, Message message) {
         try {
             if (topic == null || message == null) {
-                LOGGER.warning("Received null topic or message");
+                LOG.warn("{} received a null topic or message", id);
                 return;
             }
 
-            String normalizedTopic = topic.toUpperCase();
-            Message mergedMessage = new Message(normalizedTopic + DIVIDER + message.asText);
-            
-            if (!messageQueue.offer(mergedMessage, QUEUE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
-                LOGGER.warning(() -> String.format("Queue full, dropped message for topic: %s", topic));
+            // Topics pass their normalized name, no need to normalize it again per message
+            long now = System.nanoTime();
+            if (!mailbox.offer(topic, message, now) && !offerOnOverflow(topic, message, now)) {
+                dropped.increment();
+                if (overflowPolicy == OverflowPolicy.BLOCK) {
+                    warnDropped(); // The other policies drop by design
+                }
+                return;
+            }
+            if (scheduler != null) {
+                scheduleDrain();
+            } else if (parked) {
+                LockSupport.unpark(processingThread);
             }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            LOGGER.log(Level.WARNING, "Interrupted while queuing message", e);
+            LOG.warn("Interrupted while queuing a message for {}", id);
         }
     }
 
+    // Applies the overflow policy to a message that found the mailbox full, returns false if
+    // the message is dropped
+    private boolean offerOnOverflow(String topic, Message message, long now) throws InterruptedException {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                do {
+                    if (mailbox.dropOldest()) {
+                        dropped.increment();
+                    } else {
+                        Thread.onSpinWait(); // The oldest slot is still being filled
+                    }
+                } while (!mailbox.offer(topic, message, now));
+                return true;
+            case BLOCK:
+                return offerWhenFull(topic, message, now);
+            default:
+                return false;
+        }
+    }
+
+    // Under overload every message may be dropped; the metric counts them all, the log gets at
+    // most one line per interval
+    private void warnDropped() {
+        long now = System.nanoTime();
+        long last = lastDropWarning.get();
+        if (now - last >= DROP_WARNING_INTERVAL_NANOS && lastDropWarning.compareAndSet(last, now)) {
+            LOG.warn("Queue of {} full, {} messages dropped so far", id, dropped.get());
+        }
+    }
+
+    // Waits for room like a bounded queue would, for at most QUEUE_TIMEOUT_SECONDS. Workers of
+    // a platform thread scheduler don't wait, see OverflowPolicy.BLOCK
+    private boolean offerWhenFull(String topic, Message message, long start) throws InterruptedException {
+        if (scheduler != null && !scheduler.mayBlockCaller()) {
+            return false;
+        }
+        long deadline = start + TimeUnit.SECONDS.toNanos(QUEUE_TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline && isRunning) {
+            LockSupport.parkNanos(this, FULL_BACKOFF_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (mailbox.offer(topic, message, System.nanoTime())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public void close() {
+        for (Topic topic : subscriptions) {
+            topic.unsubscribe(this);
+        }
+        subscriptions.clear();
         isRunning = false;
-        processingThread.interrupt();
         try {
-            processingThread.join(TimeUnit.SECONDS.toMillis(QUEUE_TIMEOUT_SECONDS));
+            if (processingThread != null) {
+                processingThread.interrupt();
+                processingThread.join(TimeUnit.SECONDS.toMillis(QUEUE_TIMEOUT_SECONDS));
+            } else {
+                awaitDrainFinished();
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            LOGGER.log(Level.WARNING, "Interrupted while closing agent", e);
+            LOG.warn("Interrupted while closing {}", id);
         }
         delegateAgent.close();
+        MetricsRegistry metrics = MetricsRegistry.get();
+        for (String metric : new String[] {QUEUE_DEPTH, QUEUE_WAIT, CALLBACK_TIME, DROPPED}) {
+            metrics.remove(metric, "agent", id);
+        }
     }
 
     private void processMessages() {
         while (isRunning) {
-            try {
-                Message message = messageQueue.poll(QUEUE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-                if (message != null) {
-                    String[] parts = message.asText.split(DIVIDER, 2);
-                    if (parts.length == 2) {
-                        delegateAgent.callback(parts[0], new Message(parts[1]));
-                    } else {
-                        LOGGER.warning(() -> String.format("Invalid message format: %s", message.asText));
+            if (mailbox.drain(handler, BATCH_SIZE) > 0) {
+                continue;
+            }
+            switch (waitStrategy) {
+                case SPIN:
+                    Thread.onSpinWait();
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    // Publishers unpark us after publishing if they see the flag; checking the
+                    // mailbox again after setting it closes the window in between
+                    parked = true;
+                    if (mailbox.isEmpty() && isRunning) {
+                        LockSupport.parkNanos(this, MAX_PARK_NANOS);
                     }
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                LOGGER.log(Level.INFO, "Message processing interrupted", e);
-                break;
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error processing message", e);
+                    parked = false;
+            }
+        }
+    }
+
+    // Queues a drain unless one is queued or running already, which keeps the agent serial
+    private void scheduleDrain() {
+        if (!drainScheduled.get() && drainScheduled.compareAndSet(false, true)) {
+            if (!scheduler.execute(drainTask)) {
+                drainScheduled.set(false); // Scheduler shut down, the messages stay queued
             }
         }
     }
+
+    // One turn of the agent on a scheduler worker. Messages published after the batch but
+    // before the flag is cleared are seen by the check that follows, the publisher having
+    // found the flag still set
+    private void drainOnScheduler() {
+        if (isRunning) {
+            mailbox.drain(handler, BATCH_SIZE);
+        }
+        drainScheduled.set(false);
+        if (isRunning && !mailbox.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    // Waits for a drain in progress so the agent is not closed while it runs
+    private void awaitDrainFinished() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(QUEUE_TIMEOUT_SECONDS);
+        while (drainScheduled.get() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    // Runs on the processing thread for every drained message
+    private void handleMessage(String topic, Message message, long enqueuedAt) {
+        long start = System.nanoTime();
+        queueWait.record(start - enqueuedAt);
+        try {
+            delegateAgent.callback(topic, message);
+        } catch (Exception e) {
+            LOG.error("{} failed to process a message", id, e);
+        }
+        callbackTime.recordSince(start);
+    }
 }
@@ -0,0 +1,125 @@
+package graph;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A bounded ring of messages for one agent, with many publishing threads and one consumer.
+//
+// The slots are allocated once and hold the topic and message directly. Every slot carries a
+// sequence number saying whose turn it is: a publisher claims the next position with a
+// compare-and-set on the tail, fills its slot and publishes it by advancing the sequence; the
+// consumer claims published slots in order with a compare-and-set on the head and hands each
+// back by advancing its sequence by one lap. No locks are taken on either side. Publishers
+// may claim the head too, to make room by dropping the oldest message.
+final class RingMailbox implements Mailbox {
+
+    private final String[] topics;
+    private final Message[] messages;
+    private final long[] enqueuedAt;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private volatile long discardBefore; // Positions below it are dropped by the consumer
+
+    // The capacity is rounded up to a power of two
+    RingMailbox(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.topics = new String[size];
+        this.messages = new Message[size];
+        this.enqueuedAt = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    @Override
+    public boolean offer(String topic, Message message, long now) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long lag = sequences.get(index) - position;
+            if (lag == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    topics[index] = topic;
+                    messages[index] = message;
+                    enqueuedAt[index] = now;
+                    sequences.set(index, position + 1); // Publishes the plain writes above
+                    return true;
+                }
+                position = tail.get();
+            } else if (lag < 0) {
+                return false; // The consumer has not freed this slot yet
+            } else {
+                position = tail.get(); // Another publisher took the position
+            }
+        }
+    }
+
+    // Each slot is freed before its message is handled, so publishers can refill it while the
+    // agent works
+    @Override
+    public int drain(Handler handler, int max) {
+        int drained = 0;
+        while (drained < max) {
+            long position = head.get();
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            if (!head.compareAndSet(position, position + 1)) {
+                continue; // A publisher dropped this message
+            }
+            String topic = topics[index];
+            Message message = messages[index];
+            long queuedAt = enqueuedAt[index];
+            topics[index] = null;
+            messages[index] = null;
+            sequences.set(index, position + mask + 1);
+            if (position >= discardBefore) {
+                handler.onMessage(topic, message, queuedAt);
+                drained++;
+            }
+        }
+        return drained;
+    }
+
+    @Override
+    public boolean dropOldest() {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                return false; // Empty, or the oldest slot is still being filled
+            }
+            if (head.compareAndSet(position, position + 1)) {
+                topics[index] = null;
+                messages[index] = null;
+                sequences.set(index, position + mask + 1);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        discardBefore = tail.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long position = head.get();
+        return sequences.get((int) position & mask) != position + 1;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+}
@@ -1,22 +1,48 @@
 package graph;
 
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.Optional;
 
 public class Topic {
+    private static final int FAN_OUT_BATCH_SIZE = 64;
+    private static final String PUBLISHES = "topic_publishes_total";
+    private static final String FAN_OUT = "topic_fanout";
+
     private final String name;
     private final List<Agent> subscribers;
     private final List<Agent> publishers;
+    private final CopyOnWriteArrayList<TopicListener> listeners;
     private volatile Message lastMessage;
+    private volatile long version;
+    private final Counter publishes;
+    private final Histogram fanOut;
+    // Delivers to many subscribers off the publishing thread, null to always call them directly
+    private final FanOut asyncFanOut;
+    private final Queue<Message> fanOutQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean fanOutScheduled = new AtomicBoolean();
+    private final Runnable fanOutTask = this::drainFanOut;
 
     public Topic(String name) {
         this.name = name;
         this.subscribers = new CopyOnWriteArrayList<>();
         this.publishers = new CopyOnWriteArrayList<>();
+        this.listeners = new CopyOnWriteArrayList<>();
         this.lastMessage = new Message("0.0");
+        this.version = TopicManagerSingleton.get().nextVersion();
+        MetricsRegistry metrics = MetricsRegistry.get();
+        this.publishes = metrics.counter(PUBLISHES, "Messages published to the topic.", "topic", name);
+        this.fanOut = metrics.histogram(FAN_OUT, "Subscribers and listeners notified by one publish.", 1, "topic", name);
+        this.asyncFanOut = TopicManagerSingleton.get().getFanOut();
     }
 
     public String getName() {
@@ -35,13 +61,82 @@ public class Topic {
         }
     }
 
+    // Called when the topic is dropped, so its series do not outlive it
+    void removeMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.get();
+        metrics.remove(PUBLISHES, "topic", name);
+        metrics.remove(FAN_OUT, "topic", name);
+    }
+
+    // Puts another agent in place of a subscriber, e.g. a wrapper delivering through a queue,
+    // in one step so no message reaches both or neither. Returns false if it was not subscribed
+    boolean replaceSubscriber(Agent agent, Agent replacement) {
+        if (agent == null || replacement == null || !subscribers.contains(agent)) {
+            return false;
+        }
+        subscribers.replaceAll(subscriber -> subscriber == agent ? replacement : subscriber);
+        return true;
+    }
+
     public void publish(Message message) {
         if (message != null) {
-            subscribers.forEach(agent -> agent.callback(name, message));
+            publishes.increment();
+            fanOut.record(subscribers.size() + listeners.size());
+            // Once a message is queued, the following ones must queue behind it to stay in order.
+            // The queue is checked before the flag: a message taken off the queue keeps the flag
+            // set until it is delivered.
+            if (asyncFanOut != null && (!fanOutQueue.isEmpty() || fanOutScheduled.get()
+                    || asyncFanOut.appliesTo(subscribers.size()))) {
+                asyncFanOut.acquire();
+                fanOutQueue.add(message);
+                scheduleFanOut();
+            } else {
+                subscribers.forEach(agent -> agent.callback(name, message));
+            }
             lastMessage = message;
+            version = TopicManagerSingleton.get().nextVersion();
+            listeners.forEach(listener -> listener.onPublish(this, message));
         }
     }
 
+    // Queues a drain unless one is queued or running, so messages are delivered one at a time
+    private void scheduleFanOut() {
+        if (fanOutScheduled.compareAndSet(false, true)) {
+            asyncFanOut.execute(fanOutTask);
+        }
+    }
+
+    // Runs on the fan-out pool, gives other topics a turn after a batch
+    private void drainFanOut() {
+        Message message;
+        for (int i = 0; i < FAN_OUT_BATCH_SIZE && (message = fanOutQueue.poll()) != null; i++) {
+            try {
+                asyncFanOut.deliver(name, subscribers.toArray(new Agent[0]), message);
+            } finally {
+                asyncFanOut.release();
+            }
+        }
+        fanOutScheduled.set(false);
+        if (!fanOutQueue.isEmpty()) {
+            scheduleFanOut();
+        }
+    }
+
+    public void addListener(TopicListener listener) {
+        if (listener != null) {
+            listeners.addIfAbsent(listener);
+        }
+    }
+
+    public void removeListener(TopicListener listener) {
+        listeners.remove(listener);
+    }
+
+    // State version of the last change to this topic, see TopicManager.getVersion()
+    public long getVersion() {
+        return version;
+    }
+
     public Optional<Message> getLastMessage() {
         return Optional.ofNullable(lastMessage);
     }
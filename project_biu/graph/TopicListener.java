@@ -0,0 +1,7 @@
+package graph;
+
+// Observes messages published on topics, e.g. to push them to dashboards.
+// Called on the publishing thread, so implementations must return quickly.
+public interface TopicListener {
+    void onPublish(Topic topic, Message message);
+}
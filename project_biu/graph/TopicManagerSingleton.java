@@ -1,40 +1,104 @@
 package graph;
 
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TopicManagerSingleton {
 
     public static class TopicManager {
         private static final TopicManager instance = new TopicManager();
         private final ConcurrentHashMap<String, Topic> topics;
+        private final List<TopicListener> listeners = new CopyOnWriteArrayList<>();
+        private final AtomicLong generation = new AtomicLong();
+        private final AtomicLong version = new AtomicLong();
+        private volatile long clearedAtVersion;
+        private volatile FanOut fanOut;
 
         private TopicManager() {
             this.topics = new ConcurrentHashMap<>();
         }
 
+        // Returns the topic, creating it on first use. Agents should call this once when they are
+        // built and keep the handle, so publishing never goes through the map.
         public Topic getTopic(String name) {
-            name = name.toUpperCase(); // Normalize to uppercase
-            if (topics.containsKey(name)) {
-                return topics.get(name);
-            } else {
-                Topic topic = new Topic(name);
-                topics.put(name, topic);
+            Topic topic = topics.get(name); // Names are usually normalized already
+            if (topic != null) {
                 return topic;
             }
+            Topic[] created = new Topic[1];
+            topic = topics.computeIfAbsent(name.toUpperCase(), normalized -> {
+                created[0] = new Topic(normalized);
+                listeners.forEach(created[0]::addListener);
+                return created[0];
+            });
+            if (topic == created[0]) {
+                // A listener added while the topic was being created may have missed it
+                listeners.forEach(topic::addListener);
+            }
+            return topic;
         }
 
         public boolean containsTopic(String name) {
-            name = name.toUpperCase(); // Normalize to uppercase
-            return topics.containsKey(name);
+            return topics.containsKey(name) || topics.containsKey(name.toUpperCase());
         }
 
         public Collection<Topic> getTopics() {
             return topics.values();
         }
 
+        // Listens to every topic, including the ones created later
+        public void addListener(TopicListener listener) {
+            listeners.add(listener);
+            topics.values().forEach(topic -> topic.addListener(listener));
+        }
+
+        public void removeListener(TopicListener listener) {
+            listeners.remove(listener);
+            topics.values().forEach(topic -> topic.removeListener(listener));
+        }
+
+        // Changes whenever the topics are cleared, so callers caching Topic handles know to drop them
+        public long getGeneration() {
+            return generation.get();
+        }
+
+        // Monotonic state version, bumped by every topic creation and publish
+        public long getVersion() {
+            return version.get();
+        }
+
+        // Version at which the topics were last cleared; deltas from before it are incomplete
+        public long getClearedAtVersion() {
+            return clearedAtVersion;
+        }
+
+        // Delivers to topics with many subscribers asynchronously, applies to topics created
+        // afterwards. Null, the default, calls subscribers on the publishing thread.
+        public void setFanOut(FanOut fanOut) {
+            this.fanOut = fanOut;
+        }
+
+        FanOut getFanOut() {
+            return fanOut;
+        }
+
+        long nextVersion() {
+            return version.incrementAndGet();
+        }
+
         public void clear() {
-            topics.clear();
+            generation.incrementAndGet();
+            clearedAtVersion = version.incrementAndGet();
+            for (Iterator<Topic> it = topics.values().iterator(); it.hasNext(); ) {
+                Topic topic = it.next();
+                // Before removing it, so a topic of the same name created next gets fresh metrics
+                topic.removeMetrics();
+                it.remove();
+            }
         }
     }
 
@@ -0,0 +1,20 @@
+package graph;
+
+import java.util.Locale;
+
+// How the thread draining an agent's mailbox waits while the mailbox is empty.
+// SPIN reacts fastest but keeps a core busy, YIELD leaves the core to other runnable threads,
+// PARK sleeps until a publisher wakes it and costs no CPU while the agent is idle.
+public enum WaitStrategy {
+    SPIN,
+    YIELD,
+    PARK;
+
+    // Parses a name like "yield", PARK for null
+    public static WaitStrategy fromName(String name) {
+        if (name == null || name.isEmpty()) {
+            return PARK;
+        }
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
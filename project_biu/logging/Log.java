@@ -0,0 +1,161 @@
+package logging;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The Log class is the logging facade of the application.
+ *
+ * <p>Logging a message only stores its level, format and arguments in a lock-free ring buffer;
+ * a background thread formats them and writes the lines to standard output in the logfmt style
+ * ({@code time=... level=INFO logger=... thread=... msg="..."}). Threads that log therefore
+ * never contend on {@code System.out}. When the buffer is full the event is dropped and counted
+ * instead of blocking the caller.</p>
+ *
+ * <p>A message below the global level costs one volatile read. Formats use {@code {}} as the
+ * placeholder for arguments, which are turned into strings on the writer thread, so they should
+ * not be changed after being logged. A {@link Throwable} passed as the last argument is printed
+ * with its stack trace.</p>
+ *
+ * <p>A sampled log, obtained with {@link #sampled(int)}, keeps only one in n of its debug and
+ * info events, for messages logged on every request.</p>
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final LogRing ring = new LogRing(8192);
+    private static final LogWriter writer = new LogWriter(ring, System.out);
+    private static volatile int threshold = parseLevel(System.getProperty("log.level")).ordinal();
+
+    static {
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(writer::drainAndStop, "LogWriterShutdown"));
+    }
+
+    private final String name;
+    private final int sampleEvery;
+
+    private Log(String name, int sampleEvery) {
+        this.name = name;
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * Returns the log of a component.
+     *
+     * @param name the name shown in the logger field, usually the class name
+     * @return the log
+     */
+    public static Log get(String name) {
+        return new Log(name, 1);
+    }
+
+    public static Log get(Class<?> type) {
+        return get(type.getSimpleName());
+    }
+
+    /**
+     * Sets the lowest level that is logged, {@link Level#INFO} unless the {@code log.level}
+     * system property says otherwise.
+     *
+     * @param level the level
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Parses a level name such as "debug" or "WARN".
+     *
+     * @param name the level name, or null for {@link Level#INFO}
+     * @return the level
+     */
+    public static Level parseLevel(String name) {
+        if (name == null || name.isEmpty()) {
+            return Level.INFO;
+        }
+        return Level.valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns a log with the same name that keeps one in n of its debug and info events,
+     * chosen at random. Warnings and errors are always kept.
+     *
+     * @param n the sampling ratio, 1 keeps everything
+     * @return the sampled log
+     */
+    public Log sampled(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Sampling ratio must be positive");
+        }
+        return new Log(name, n);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    public void debug(String format) {
+        log(Level.DEBUG, format, null, null);
+    }
+
+    public void debug(String format, Object arg) {
+        log(Level.DEBUG, format, arg, null);
+    }
+
+    public void debug(String format, Object arg1, Object arg2) {
+        log(Level.DEBUG, format, arg1, arg2);
+    }
+
+    public void info(String format) {
+        log(Level.INFO, format, null, null);
+    }
+
+    public void info(String format, Object arg) {
+        log(Level.INFO, format, arg, null);
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        log(Level.INFO, format, arg1, arg2);
+    }
+
+    public void warn(String format) {
+        log(Level.WARN, format, null, null);
+    }
+
+    public void warn(String format, Object arg) {
+        log(Level.WARN, format, arg, null);
+    }
+
+    public void warn(String format, Object arg1, Object arg2) {
+        log(Level.WARN, format, arg1, arg2);
+    }
+
+    public void error(String format) {
+        log(Level.ERROR, format, null, null);
+    }
+
+    public void error(String format, Object arg) {
+        log(Level.ERROR, format, arg, null);
+    }
+
+    public void error(String format, Object arg1, Object arg2) {
+        log(Level.ERROR, format, arg1, arg2);
+    }
+
+    private void log(Level level, String format, Object arg1, Object arg2) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+        if (sampleEvery > 1 && level.ordinal() < Level.WARN.ordinal()
+                && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return;
+        }
+        if (ring.offer(level, name, Thread.currentThread().getName(), format, arg1, arg2)) {
+            writer.wake();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded ring buffer of log events with many producers and one consumer.
+ *
+ * <p>Every slot carries a sequence number telling whose turn it is: a producer claims the next
+ * position with a compare-and-set on the tail, fills the slot it owns and publishes it by
+ * advancing the slot's sequence; the consumer reads published slots in order and hands them
+ * back by advancing the sequence by one lap. No locks are taken, and the slots are allocated
+ * once.</p>
+ */
+final class LogRing {
+
+    private final Event[] events;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private long head; // Only touched by the consumer
+
+    /**
+     * Creates a ring.
+     *
+     * @param capacity the number of slots, a power of two
+     */
+    LogRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        this.events = new Event[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            events[i] = new Event();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an event, or drops it if the ring is full.
+     *
+     * @return false if the event was dropped
+     */
+    boolean offer(Log.Level level, String logger, String thread, String format, Object arg1, Object arg2) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long lag = sequences.get(index) - position;
+            if (lag == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events[index].set(System.currentTimeMillis(), level, logger, thread, format, arg1, arg2);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (lag < 0) {
+                dropped.increment(); // The consumer has not freed this slot yet
+                return false;
+            } else {
+                position = tail.get(); // Another producer took the position
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest published event.
+     *
+     * @param into receives a copy of the event
+     * @return false if no event is published
+     */
+    boolean poll(Event into) {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return false;
+        }
+        into.copyFrom(events[index]);
+        events[index].clear();
+        sequences.set(index, head + mask + 1);
+        head++;
+        return true;
+    }
+
+    /**
+     * Tells whether no published event is waiting, called by the consumer.
+     */
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    /**
+     * Returns the number of events dropped since the last call.
+     */
+    long takeDropped() {
+        return dropped.sumThenReset();
+    }
+
+    /**
+     * One log event, a reusable slot of the ring.
+     */
+    static final class Event {
+        long time;
+        Log.Level level;
+        String logger;
+        String thread;
+        String format;
+        Object arg1;
+        Object arg2;
+
+        void set(long time, Log.Level level, String logger, String thread, String format, Object arg1, Object arg2) {
+            this.time = time;
+            this.level = level;
+            this.logger = logger;
+            this.thread = thread;
+            this.format = format;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+
+        void copyFrom(Event other) {
+            set(other.time, other.level, other.logger, other.thread, other.format, other.arg1, other.arg2);
+        }
+
+        // Drops the references so the ring does not keep arguments alive
+        void clear() {
+            set(0, null, null, null, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package logging;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The background thread draining the {@link LogRing}. It formats the events and writes them in
+ * batches, one print per batch, so standard output is only ever used by this thread.
+ */
+final class LogWriter extends Thread {
+
+    // Producers wake the writer, the timeout only bounds how late dropped events are reported
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_BATCH = 512;
+
+    private final LogRing ring;
+    private final PrintStream out;
+    private final LogRing.Event event = new LogRing.Event();
+    private final StringBuilder batch = new StringBuilder();
+    private volatile boolean running = true;
+    private volatile boolean parked; // Set while the writer waits for events
+
+    LogWriter(LogRing ring, PrintStream out) {
+        this.ring = ring;
+        this.out = out;
+        setName("LogWriter");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            if (drain() == 0) {
+                // Producers unpark us after logging if they see the flag; checking the ring again
+                // after setting it closes the window in between
+                parked = true;
+                if (ring.isEmpty() && running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                parked = false;
+            }
+        }
+    }
+
+    /**
+     * Wakes the writer if it waits for events, called after an event is added to the ring.
+     */
+    void wake() {
+        if (parked) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Stops the writer and writes what is left in the ring, called when the JVM exits.
+     */
+    void drainAndStop() {
+        running = false;
+        LockSupport.unpark(this);
+        try {
+            join(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while (drain() > 0) {
+            // Keep writing until the ring is empty
+        }
+    }
+
+    private synchronized int drain() {
+        int count = 0;
+        while (count < MAX_BATCH && ring.poll(event)) {
+            append(event);
+            count++;
+        }
+        long dropped = ring.takeDropped();
+        if (dropped > 0) {
+            batch.append("time=").append(Instant.now()).append(" level=WARN logger=Log thread=")
+                    .append(getName()).append(" msg=\"").append(dropped).append(" log events dropped\"\n");
+        }
+        if (batch.length() > 0) {
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+        return count;
+    }
+
+    private void append(LogRing.Event event) {
+        batch.append("time=").append(Instant.ofEpochMilli(event.time))
+                .append(" level=").append(event.level)
+                .append(" logger=").append(event.logger)
+                .append(" thread=").append(event.thread.isEmpty() ? "-" : event.thread.replace(' ', '_'))
+                .append(" msg=\"");
+        Throwable thrown = formatMessage(event.format, event.arg1, event.arg2);
+        batch.append('"').append('\n');
+        if (thrown != null) {
+            StringWriter trace = new StringWriter();
+            thrown.printStackTrace(new PrintWriter(trace));
+            batch.append(trace);
+        }
+    }
+
+    // Appends the message with its placeholders replaced, returns a trailing throwable argument
+    private Throwable formatMessage(String format, Object arg1, Object arg2) {
+        Object[] args = {arg1, arg2};
+        int used = 0;
+        int from = 0;
+        int placeholder;
+        while (used < args.length && (placeholder = format.indexOf("{}", from)) >= 0) {
+            appendEscaped(format, from, placeholder);
+            String value = String.valueOf(args[used++]);
+            appendEscaped(value, 0, value.length());
+            from = placeholder + 2;
+        }
+        appendEscaped(format, from, format.length());
+        for (int i = used; i < args.length; i++) {
+            if (args[i] instanceof Throwable thrown) {
+                return thrown;
+            }
+        }
+        return null;
+    }
+
+    private void appendEscaped(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                batch.append('\\').append(c);
+            } else if (c == '\n') {
+                batch.append("\\n");
+            } else if (c != '\r') {
+                batch.append(c);
+            }
+        }
+    }
+}
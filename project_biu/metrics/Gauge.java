@@ -0,0 +1,20 @@
+package metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A value sampled when the metrics are exported, such as the length of a queue.
+ */
+final class Gauge implements Metric {
+
+    private final DoubleSupplier supplier;
+
+    Gauge(DoubleSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String name, String labels) {
+        out.append(name).append(labels).append(' ').append(supplier.getAsDouble()).append('\n');
+    }
+}
@@ -0,0 +1,150 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A distribution of non-negative long values, such as latencies in nanoseconds or fan-out sizes.
+ *
+ * <p>Values are counted in log-linear buckets in the manner of HDR histograms: every power of
+ * two is split into {@link #SUB_BUCKETS} equal buckets, so any recorded value is known within
+ * 1/8 of itself over the whole long range, in a fixed 488 buckets. Each bucket is a
+ * {@link LongAdder} created when first hit, so recording is lock-free and allocation-free once
+ * warm.</p>
+ *
+ * <p>The histogram is exported as a Prometheus summary: quantiles, sum and count, with values
+ * multiplied by a scale such as 1e-9 to report nanoseconds in seconds.</p>
+ */
+public final class Histogram implements Metric {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<>(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final double scale;
+
+    Histogram(double scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * Records one value, negative values count as 0.
+     *
+     * @param value the value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = indexOf(value);
+        LongAdder bucket = buckets.get(index);
+        if (bucket == null) {
+            buckets.compareAndSet(index, null, new LongAdder());
+            bucket = buckets.get(index);
+        }
+        bucket.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records the time elapsed since a {@link System#nanoTime()} reading.
+     *
+     * @param startNanos the reading taken when the measured operation started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            LongAdder bucket = buckets.get(i);
+            if (bucket != null) {
+                count += bucket.sum();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values fall, reported as
+     * the highest value of its bucket.
+     *
+     * @param quantile the fraction, between 0 and 1
+     * @return the value, or 0 if nothing was recorded
+     */
+    public long valueAtQuantile(double quantile) {
+        return valueAtQuantile(snapshot(), quantile);
+    }
+
+    @Override
+    public void writeTo(StringBuilder out, String name, String labels) {
+        long[] counts = snapshot();
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        for (double quantile : QUANTILES) {
+            out.append(name).append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(valueAtQuantile(counts, quantile) * scale).append('\n');
+        }
+        out.append(name).append("_sum").append(labels).append(' ').append(sum.sum() * scale).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(count).append('\n');
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            LongAdder bucket = buckets.get(i);
+            if (bucket != null) {
+                counts[i] = bucket.sum();
+            }
+        }
+        return counts;
+    }
+
+    private static long valueAtQuantile(long[] counts, double quantile) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(BUCKETS - 1);
+    }
+
+    // Values below SUB_BUCKETS get a bucket each, above that every power of two is split in
+    // SUB_BUCKETS buckets by the bits following the leading one
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValueOf(int index) {
+        int block = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+        if (block == 0) {
+            return subBucket;
+        }
+        int shift = block - 1;
+        long lowest = (long) (SUB_BUCKETS + subBucket) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
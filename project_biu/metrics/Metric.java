@@ -0,0 +1,16 @@
+package metrics;
+
+/**
+ * A metric that can write its current value in the Prometheus text format.
+ */
+interface Metric {
+
+    /**
+     * Appends the sample lines of this metric.
+     *
+     * @param out    the exposition being built
+     * @param name   the name of the metric family
+     * @param labels the rendered label set, e.g. {@code {topic="A"}}, or an empty string
+     */
+    void writeTo(StringBuilder out, String name, String labels);
+}
@@ -0,0 +1,151 @@
+package metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The MetricsRegistry class holds the metrics of the process and renders them in the
+ * Prometheus text exposition format.
+ *
+ * <p>Metrics are identified by a family name and a set of label pairs. Asking twice for the
+ * same name and labels returns the same metric, so instrumented code looks its metrics up once,
+ * keeps them in fields and only pays for the lock-free update on the hot path.</p>
+ */
+public final class MetricsRegistry {
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    // Families by name, sorted so the exposition is stable
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    private MetricsRegistry() {
+    }
+
+    public static MetricsRegistry get() {
+        return instance;
+    }
+
+    /**
+     * Returns the counter with the given name and labels, creating it on first use.
+     *
+     * @param name   the metric name, e.g. {@code http_requests_total}
+     * @param help   the description of the family
+     * @param labels label names and values, alternating
+     * @return the counter
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").metrics
+                .computeIfAbsent(renderLabels(labels), key -> new Counter());
+    }
+
+    /**
+     * Returns the histogram with the given name and labels, creating it on first use.
+     *
+     * @param name   the metric name, e.g. {@code http_request_duration_seconds}
+     * @param help   the description of the family
+     * @param scale  the factor applied to recorded values on export, e.g. 1e-9 for nanoseconds
+     *               reported in seconds
+     * @param labels label names and values, alternating
+     * @return the histogram
+     */
+    public Histogram histogram(String name, String help, double scale, String... labels) {
+        return (Histogram) family(name, help, "summary").metrics
+                .computeIfAbsent(renderLabels(labels), key -> new Histogram(scale));
+    }
+
+    /**
+     * Registers a gauge sampled on every export, replacing any gauge with the same name and labels.
+     *
+     * @param name     the metric name
+     * @param help     the description of the family
+     * @param supplier provides the current value
+     * @param labels   label names and values, alternating
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        family(name, help, "gauge").metrics.put(renderLabels(labels), new Gauge(supplier));
+    }
+
+    /**
+     * Removes a metric, typically a gauge whose source is going away.
+     *
+     * @param name   the metric name
+     * @param labels label names and values, alternating
+     */
+    public void remove(String name, String... labels) {
+        Family family = families.get(name);
+        if (family != null) {
+            family.metrics.remove(renderLabels(labels));
+        }
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format (version 0.0.4).
+     *
+     * @return the exposition
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            Family family = entry.getValue();
+            if (family.metrics.isEmpty()) {
+                continue;
+            }
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(' ').append(family.type).append('\n');
+            family.metrics.forEach((labels, metric) -> metric.writeTo(out, entry.getKey(), labels));
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    private static String renderLabels(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder rendered = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                rendered.append(',');
+            }
+            rendered.append(labels[i]).append("=\"");
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    rendered.append('\\').append(c);
+                } else if (c == '\n') {
+                    rendered.append("\\n");
+                } else {
+                    rendered.append(c);
+                }
+            }
+            rendered.append('"');
+        }
+        return rendered.append('}').toString();
+    }
+
+    /**
+     * The metrics sharing a name, by rendered label set.
+     */
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The AdmissionControl class decides whether an HTTP server takes on more work, so that an
+ * overloaded server answers at once with an error instead of queueing without bound.
+ *
+ * <p>Three limits are applied, each disabled while set to 0:</p>
+ * <ul>
+ *   <li>the number of open connections; connections beyond it are answered with
+ *   {@code 503 Service Unavailable} and closed,</li>
+ *   <li>the number of connections or requests waiting for a thread of the server; work beyond
+ *   it is answered with {@code 503 Service Unavailable},</li>
+ *   <li>the request rate of each client IP address, enforced by a token bucket; requests beyond
+ *   it are answered with {@code 429 Too Many Requests}.</li>
+ * </ul>
+ *
+ * <p>Rejections carry a {@code Retry-After} header and close the connection. The limits can be
+ * changed at any time, typically when the server is built.</p>
+ *
+ * <p>At most {@value #MAX_TRACKED_CLIENTS} clients are tracked. Buckets that refilled are
+ * dropped every second, and when new clients still find the table full the least recently
+ * seen quarter is evicted, so a stream of distinct addresses cannot grow it.</p>
+ */
+public class AdmissionControl {
+
+    private static final int MAX_TRACKED_CLIENTS = 4096;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile int maxConnections;
+    private volatile int maxQueuedRequests;
+    private volatile double requestsPerSecond;
+    private volatile int burst;
+    private volatile int retryAfterSeconds = 1;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private volatile long lastSweep = System.nanoTime();
+
+    /**
+     * Sets the maximum number of open connections.
+     *
+     * @param maxConnections the limit, 0 for no limit
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connections or requests waiting for a server thread.
+     *
+     * @param maxQueuedRequests the limit, 0 for no limit
+     */
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    /**
+     * Limits the request rate of every client IP address.
+     *
+     * @param requestsPerSecond the sustained rate allowed, 0 for no limit
+     * @param burst             the number of requests a client may send at once after being idle
+     */
+    public void setRateLimit(double requestsPerSecond, int burst) {
+        this.burst = Math.max(1, burst);
+        this.requestsPerSecond = requestsPerSecond;
+        buckets.clear();
+    }
+
+    /**
+     * Sets the Retry-After value sent with 503 Service Unavailable.
+     *
+     * @param retryAfterSeconds the delay suggested to clients, in seconds
+     */
+    public void setRetryAfter(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Counts a newly accepted connection.
+     *
+     * @return false if the connection limit is reached and the connection must be rejected
+     */
+    boolean tryOpenConnection() {
+        int limit = maxConnections;
+        if (connections.incrementAndGet() > limit && limit > 0) {
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases a connection counted by {@link #tryOpenConnection()}.
+     */
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Counts work about to be queued for a server thread.
+     *
+     * @return false if the queue is full and the work must be rejected
+     */
+    boolean tryEnqueue() {
+        int limit = maxQueuedRequests;
+        if (queued.incrementAndGet() > limit && limit > 0) {
+            queued.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases work counted by {@link #tryEnqueue()} once a thread has picked it up.
+     */
+    void dequeued() {
+        queued.decrementAndGet();
+    }
+
+    /**
+     * Takes a token from the bucket of a client.
+     *
+     * @param client the address of the client, null for clients without one, such as those
+     *               of a Unix domain socket, which are never limited
+     * @return 0 if the request is admitted, otherwise the number of seconds until it would be
+     */
+    int acquireRequest(InetAddress client) {
+        double rate = requestsPerSecond;
+        if (rate <= 0 || client == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        if (now - lastSweep > SWEEP_INTERVAL_NANOS) {
+            lastSweep = now;
+            // Clients whose bucket refilled are indistinguishable from new ones, forget them
+            buckets.values().removeIf(bucket -> bucket.isFull(rate, burst, now));
+        }
+        TokenBucket bucket = buckets.get(client);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_TRACKED_CLIENTS) {
+                evictLeastRecentlyUsed();
+            }
+            bucket = buckets.computeIfAbsent(client, address -> new TokenBucket(burst, now));
+        }
+        long waitNanos = bucket.take(rate, burst, now);
+        return waitNanos == 0 ? 0 : (int) Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000);
+    }
+
+    // Forgets the quarter of the clients seen least recently. Sorting once per quarter of the
+    // table keeps the cost per new client logarithmic
+    private synchronized void evictLeastRecentlyUsed() {
+        if (buckets.size() < MAX_TRACKED_CLIENTS) {
+            return; // Another thread evicted already
+        }
+        long[] lastAccesses = buckets.values().stream().mapToLong(TokenBucket::lastAccess).sorted().toArray();
+        long cutoff = lastAccesses[lastAccesses.length / 4];
+        buckets.values().removeIf(bucket -> bucket.lastAccess() <= cutoff);
+    }
+
+    /**
+     * Answers a request that cannot be served right now with 503 Service Unavailable. Unlike
+     * the other rejections the connection stays usable.
+     *
+     * @param response the response of the request
+     * @throws IOException if writing the response fails
+     */
+    void rejectRequest(Response response) throws IOException {
+        response.setStatus(503);
+        response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        response.setContentType("text/plain");
+        response.write("503 Service Unavailable");
+    }
+
+    /**
+     * Builds the complete response rejecting a connection or request.
+     *
+     * @param status            429 or 503
+     * @param retryAfterSeconds the Retry-After value, or 0 for the configured one
+     * @return the response bytes, closing the connection
+     */
+    byte[] rejection(int status, int retryAfterSeconds) {
+        String reason = status == 429 ? "429 Too Many Requests" : "503 Service Unavailable";
+        int retryAfter = retryAfterSeconds > 0 ? retryAfterSeconds : this.retryAfterSeconds;
+        return ("HTTP/1.1 " + reason + "\r\n"
+                + "Retry-After: " + retryAfter + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + reason.length() + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n"
+                + reason).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Tokens available to one client, refilled continuously at the configured rate.
+     */
+    private static class TokenBucket {
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(int burst, long now) {
+            this.tokens = burst;
+            this.lastRefill = now;
+        }
+
+        // Takes one token, returns 0 on success or the nanoseconds until one is available
+        synchronized long take(double rate, int burst, long now) {
+            refill(rate, burst, now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / rate * 1e9);
+        }
+
+        synchronized long lastAccess() {
+            return lastRefill;
+        }
+
+        synchronized boolean isFull(double rate, int burst, long now) {
+            refill(rate, burst, now);
+            return tokens >= burst;
+        }
+
+        private void refill(double rate, int burst, long now) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+        }
+    }
+}
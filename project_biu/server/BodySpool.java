@@ -0,0 +1,210 @@
+package server;
+
+import logging.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The BodySpool class collects a request body that arrives over a non-blocking connection.
+ *
+ * <p>Bodies are framed by Content-Length or by chunked encoding. Small bodies are kept in
+ * memory; once a body grows past {@link #MEMORY_THRESHOLD} it is spooled to a temporary file,
+ * so large uploads use a constant amount of heap whatever their size.</p>
+ *
+ * <p>The spool is fed on a reactor thread, which must not block on the disk. Writes to the file
+ * therefore run one after the other on a writer executor; the reactor checks {@link #isBacklogged()}
+ * to stop reading while too much is waiting, and waits for {@link #written()} before handing
+ * the body on.</p>
+ */
+final class BodySpool {
+    private static final Log LOG = Log.get(BodySpool.class);
+
+    static final int MEMORY_THRESHOLD = 64 * 1024;
+    private static final long MAX_BODY_SIZE = 1L << 30;
+    private static final long MAX_UNWRITTEN = 1024 * 1024;
+
+    private final long contentLength;
+    private final ChunkedDecoder chunkedDecoder;
+    private final ByteBuffer decoded;
+    private long received;
+    private final Executor writer;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private boolean spooling;
+    // The file and its channel are only touched by the writes, and after they are done
+    private Path file;
+    private FileChannel fileChannel;
+    // Completes once every byte handed to the writer is in the file
+    private volatile CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+    private final AtomicLong unwritten = new AtomicLong();
+    private final List<InputStream> streams = new ArrayList<>();
+
+    /**
+     * Creates a spool for one request body.
+     *
+     * @param contentLength the announced length of the body, ignored for chunked bodies
+     * @param chunked       whether the body uses chunked transfer encoding
+     * @param writer        runs the writes to the temporary file of a large body
+     */
+    BodySpool(long contentLength, boolean chunked, Executor writer) {
+        this.contentLength = chunked ? -1 : contentLength;
+        this.chunkedDecoder = chunked ? new ChunkedDecoder() : null;
+        this.decoded = chunked ? ByteBuffer.allocate(8 * 1024) : null;
+        this.writer = writer;
+    }
+
+    /**
+     * Consumes the bytes of the body found at the start of a buffer. Bytes past the end of the
+     * body, such as a pipelined request, are left alone.
+     *
+     * @param buf the buffer
+     * @param off the offset of the first unconsumed byte
+     * @param len the number of valid bytes
+     * @return the number of bytes consumed
+     * @throws IOException if the body is malformed, too large or cannot be spooled
+     */
+    int feed(byte[] buf, int off, int len) throws IOException {
+        if (chunkedDecoder == null) {
+            int n = (int) Math.min(len, contentLength - received);
+            append(buf, off, n);
+            return n;
+        }
+
+        ByteBuffer src = ByteBuffer.wrap(buf, off, len);
+        while (src.hasRemaining() && !chunkedDecoder.isDone()) {
+            decoded.clear();
+            chunkedDecoder.decode(src, decoded);
+            append(decoded.array(), 0, decoded.position());
+        }
+        return src.position() - off;
+    }
+
+    /**
+     * Tells whether the whole body has been received.
+     */
+    boolean isComplete() {
+        return chunkedDecoder == null ? received == contentLength : chunkedDecoder.isDone();
+    }
+
+    /**
+     * Tells whether so much of the body waits to be written that no more should be read for now.
+     */
+    boolean isBacklogged() {
+        return unwritten.get() > MAX_UNWRITTEN;
+    }
+
+    /**
+     * Returns a stage that completes once everything fed so far is written to the file, or
+     * exceptionally if a write failed.
+     */
+    CompletableFuture<Void> written() {
+        return written;
+    }
+
+    /**
+     * Opens the received body for reading, once it is {@link #written()}. The stream is closed
+     * by {@link #dispose()} if its reader does not close it.
+     *
+     * @return a stream over the body
+     * @throws IOException if the spooled file cannot be opened
+     */
+    InputStream open() throws IOException {
+        InputStream stream;
+        if (!spooling) {
+            stream = new ByteArrayInputStream(memory.toByteArray());
+        } else {
+            fileChannel.close();
+            stream = Files.newInputStream(file, StandardOpenOption.READ);
+        }
+        synchronized (streams) {
+            streams.add(stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Releases the spooled data once the request has been handled. A file still being written
+     * is released when the writes are done.
+     */
+    void dispose() {
+        memory = null;
+        synchronized (streams) {
+            for (InputStream stream : streams) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close a request body stream", e);
+                }
+            }
+            streams.clear();
+        }
+        if (spooling) {
+            written.whenComplete((result, failure) -> deleteFile());
+        }
+    }
+
+    private void deleteFile() {
+        try {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to delete the spooled body {}", file, e);
+        }
+    }
+
+    private void append(byte[] buf, int off, int len) throws IOException {
+        received += len;
+        if (received > MAX_BODY_SIZE) {
+            throw new IOException("Request body too large");
+        }
+        if (!spooling && memory.size() + len > MEMORY_THRESHOLD) {
+            spooling = true;
+            write(memory.toByteArray());
+            memory = null;
+        }
+        if (!spooling) {
+            memory.write(buf, off, len);
+        } else if (len > 0) {
+            write(Arrays.copyOfRange(buf, off, off + len));
+        }
+    }
+
+    // Queues bytes for the file behind the writes queued before
+    private void write(byte[] bytes) {
+        unwritten.addAndGet(bytes.length);
+        written = written.thenRunAsync(() -> {
+            try {
+                if (file == null) {
+                    file = Files.createTempFile("http-body", ".tmp");
+                    fileChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+                }
+                ByteBuffer src = ByteBuffer.wrap(bytes);
+                while (src.hasRemaining()) {
+                    fileChannel.write(src);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                unwritten.addAndGet(-bytes.length);
+            }
+        }, writer);
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The ChunkedDecoder class decodes a body sent with "Transfer-Encoding: chunked".
+ *
+ * <p>It is an incremental state machine: raw bytes can be fed in pieces of any size, as they
+ * arrive from a blocking stream or from a non-blocking channel, and the decoded body bytes are
+ * written to the destination buffer. Chunk extensions and trailers are skipped.</p>
+ */
+final class ChunkedDecoder {
+
+    private static final int SIZE = 0;
+    private static final int EXTENSION = 1;
+    private static final int DATA = 2;
+    private static final int DATA_END = 3;
+    private static final int TRAILER_LINE_START = 4;
+    private static final int TRAILER_LINE = 5;
+    private static final int DONE = 6;
+
+    private int state = SIZE;
+    private long chunkRemaining;
+    private boolean sawDigit;
+
+    /**
+     * Decodes as much of the source as possible into the destination. Stops when the source is
+     * exhausted, the destination is full or the end of the body is reached; the buffer positions
+     * tell how much was consumed and produced.
+     *
+     * @param src the raw bytes received
+     * @param dst the buffer receiving the decoded body bytes
+     * @throws IOException if the chunked framing is malformed
+     */
+    void decode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        run(src, dst);
+    }
+
+    /**
+     * Consumes as much of the source as possible like {@link #decode}, discarding the body bytes.
+     *
+     * @param src the raw bytes received
+     * @throws IOException if the chunked framing is malformed
+     */
+    void skip(ByteBuffer src) throws IOException {
+        run(src, null);
+    }
+
+    // Decodes into dst, or discards the body bytes if dst is null
+    private void run(ByteBuffer src, ByteBuffer dst) throws IOException {
+        while (state != DONE && src.hasRemaining()) {
+            if (state == DATA && dst == null) {
+                int n = (int) Math.min(chunkRemaining, src.remaining());
+                src.position(src.position() + n);
+                chunkRemaining -= n;
+                if (chunkRemaining == 0) {
+                    state = DATA_END;
+                }
+                continue;
+            }
+            if (state == DATA) {
+                if (!dst.hasRemaining()) {
+                    return;
+                }
+                int n = (int) Math.min(chunkRemaining, Math.min(src.remaining(), dst.remaining()));
+                int limit = src.limit();
+                src.limit(src.position() + n);
+                dst.put(src);
+                src.limit(limit);
+                chunkRemaining -= n;
+                if (chunkRemaining == 0) {
+                    state = DATA_END;
+                }
+                continue;
+            }
+
+            byte b = src.get();
+            switch (state) {
+                case SIZE:
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (chunkRemaining > (Long.MAX_VALUE >> 4)) {
+                            throw new IOException("Chunk size too large");
+                        }
+                        chunkRemaining = (chunkRemaining << 4) | digit;
+                        sawDigit = true;
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        state = EXTENSION;
+                    } else if (b == '\n') {
+                        endOfSizeLine();
+                    } else if (b != '\r') {
+                        throw new IOException("Invalid chunk size");
+                    }
+                    break;
+                case EXTENSION:
+                    if (b == '\n') {
+                        endOfSizeLine();
+                    }
+                    break;
+                case DATA_END:
+                    if (b == '\n') {
+                        state = SIZE;
+                        sawDigit = false;
+                    } else if (b != '\r') {
+                        throw new IOException("Missing CRLF after chunk data");
+                    }
+                    break;
+                case TRAILER_LINE_START:
+                    if (b == '\n') {
+                        state = DONE;
+                    } else if (b != '\r') {
+                        state = TRAILER_LINE;
+                    }
+                    break;
+                case TRAILER_LINE:
+                    if (b == '\n') {
+                        state = TRAILER_LINE_START;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected decoder state " + state);
+            }
+        }
+    }
+
+    /**
+     * Tells whether the last chunk and the trailers have been consumed.
+     */
+    boolean isDone() {
+        return state == DONE;
+    }
+
+    private void endOfSizeLine() throws IOException {
+        if (!sawDigit) {
+            throw new IOException("Missing chunk size");
+        }
+        state = chunkRemaining == 0 ? TRAILER_LINE_START : DATA;
+    }
+}
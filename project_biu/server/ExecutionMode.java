@@ -0,0 +1,50 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The ExecutionMode enum selects how an HTTP server runs its connection or request handlers.
+ *
+ * <p>{@link #FIXED_POOL} keeps a small pool of platform threads, which caps the number of
+ * handlers in flight at the pool size. {@link #VIRTUAL_THREADS} starts a virtual thread per
+ * task, so handlers blocked on socket I/O cost little more than their stack and concurrency is
+ * bounded by memory instead of by the pool size.</p>
+ */
+public enum ExecutionMode {
+    FIXED_POOL,
+    VIRTUAL_THREADS;
+
+    /**
+     * Creates the executor for this mode.
+     *
+     * @param nThreads   the number of threads of a fixed pool, ignored for virtual threads
+     * @param namePrefix the prefix of the names given to the threads
+     * @return a new executor service
+     */
+    public ExecutorService newExecutor(int nThreads, String namePrefix) {
+        switch (this) {
+            case VIRTUAL_THREADS:
+                return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory());
+            case FIXED_POOL:
+            default:
+                return Executors.newFixedThreadPool(nThreads, Thread.ofPlatform().name(namePrefix, 0).factory());
+        }
+    }
+
+    /**
+     * Parses a mode name as used in configuration, e.g. "virtual" or "fixed".
+     *
+     * @param name the mode name, or null for the default
+     * @return the matching mode, {@link #FIXED_POOL} by default
+     */
+    public static ExecutionMode fromName(String name) {
+        if (name == null || name.isEmpty() || name.equalsIgnoreCase("fixed")) {
+            return FIXED_POOL;
+        }
+        if (name.equalsIgnoreCase("virtual")) {
+            return VIRTUAL_THREADS;
+        }
+        return valueOf(name.toUpperCase());
+    }
+}
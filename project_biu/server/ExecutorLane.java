@@ -0,0 +1,78 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ExecutorLane class is a named thread pool dedicated to some of the routes of an HTTP
+ * server, such as config uploads or page renders.
+ *
+ * <p>Each lane has its own threads and its own bound on the requests waiting for them, so a
+ * burst on one lane is shed with 503 Service Unavailable instead of delaying the routes of the
+ * other lanes. Routes registered without a lane run on the server's own threads.</p>
+ */
+final class ExecutorLane {
+
+    private final String name;
+    private final ExecutorService executor;
+    private final int maxQueued;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Creates a lane.
+     *
+     * @param name          the name routes refer to the lane by
+     * @param executionMode whether the lane runs a fixed pool or virtual threads
+     * @param nThreads      the number of threads of a fixed pool
+     * @param maxQueued     the number of requests allowed to wait for a thread, 0 for no limit
+     */
+    ExecutorLane(String name, ExecutionMode executionMode, int nThreads, int maxQueued) {
+        this.name = name;
+        this.executor = executionMode.newExecutor(nThreads, "Lane-" + name + "-");
+        this.maxQueued = maxQueued;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Queues a task on the lane.
+     *
+     * @param task the task
+     * @return false if the lane's queue is full or the lane is shut down
+     */
+    boolean execute(Runnable task) {
+        if (queued.incrementAndGet() > maxQueued && maxQueued > 0) {
+            queued.decrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                queued.decrementAndGet();
+                task.run();
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the running ones to finish.
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -5,6 +5,8 @@ import servlets.Servlet;
 
 public interface HTTPServer extends Runnable{
     public void addServlet(String httpCommand, String uri, Servlet s);
+    public void addServlet(String httpCommand, String uri, Servlet s, String lane);
+    public void addLane(String name, int nThreads, int maxQueued);
     public void removeServlet(String httpCommand, String uri);
     public void start();
     public void close();
@@ -0,0 +1,322 @@
+package server;
+
+import graph.Message;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import logging.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The IngestServer class accepts topic values over a compact binary TCP protocol, for feeds
+ * publishing at rates HTTP cannot sustain. It runs next to the HTTP server and publishes
+ * straight into the {@link TopicManagerSingleton}.
+ *
+ * <p>Every frame starts with its length as a 4 byte big-endian integer, counting the bytes that
+ * follow, then a 1 byte frame type:</p>
+ * <ul>
+ *   <li>{@code 1} BIND: 2 byte alias, 1 byte name length, topic name (UTF-8). Binds the alias to
+ *   a topic for the rest of the connection.</li>
+ *   <li>{@code 2} PUBLISH_ALIAS: 2 byte alias, 8 byte double.</li>
+ *   <li>{@code 3} PUBLISH_NAME: 1 byte name length, topic name, 8 byte double.</li>
+ * </ul>
+ *
+ * <p>The server reads whatever the socket holds and processes all complete frames of the batch
+ * before answering with one ACK frame ({@code 0x80}, 8 byte count of frames processed so far on
+ * the connection). Clients can therefore keep a window of frames in flight and only wait when
+ * too many are unacknowledged. A frame that cannot be applied is answered with an ERROR frame
+ * ({@code 0x81}, 8 byte frame number, 1 byte error code) and counted as processed.</p>
+ */
+public class IngestServer extends Thread {
+    private static final Log LOG = Log.get(IngestServer.class);
+
+    public static final byte BIND = 1;
+    public static final byte PUBLISH_ALIAS = 2;
+    public static final byte PUBLISH_NAME = 3;
+    public static final byte ACK = (byte) 0x80;
+    public static final byte ERROR = (byte) 0x81;
+
+    public static final byte ERROR_UNKNOWN_TOPIC = 1;
+    public static final byte ERROR_UNKNOWN_ALIAS = 2;
+    public static final byte ERROR_MALFORMED_FRAME = 3;
+
+    private static final int MAX_FRAME_SIZE = 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final int port;
+    private final TopicManagerSingleton.TopicManager topicManager = TopicManagerSingleton.get();
+    private volatile boolean running;
+    private Selector selector;
+
+    /**
+     * Constructs a new IngestServer instance.
+     *
+     * @param port the port on which the server will listen for feed connections
+     */
+    public IngestServer(int port) {
+        super("IngestServer");
+        this.port = port;
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            running = true;
+            LOG.info("Ingest server started on port {}", port);
+
+            while (running) {
+                selector.select(1000); // 1 second timeout to allow periodic checks
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    FeedConnection connection = (FeedConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushAck();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        connection.close();
+                    }
+                }
+            }
+            LOG.info("Ingest server stopped");
+        } catch (ClosedSelectorException e) {
+            // Server was closed
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            closeSelector();
+        }
+    }
+
+    /**
+     * Stops the server and closes all feed connections.
+     */
+    public void close() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    // Failures concern a single feed, they are logged and the other feeds go on
+    private void accept(ServerSocketChannel serverChannel) {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                // Such as running out of file descriptors. The next select retries, after a pause
+                // so a lasting condition does not spin the loop
+                LOG.warn("Failed to accept a feed: {}", e);
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            FeedConnection connection = new FeedConnection(channel);
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                LOG.warn("Failed to set up a feed: {}", e);
+                connection.close();
+            }
+        }
+    }
+
+    private void closeSelector() {
+        if (selector == null) {
+            return;
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof FeedConnection connection) {
+                connection.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close the selector", e);
+        }
+    }
+
+    /**
+     * State of one feed connection, owned by the server thread.
+     */
+    private class FeedConnection {
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer out = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Map<Integer, Topic> aliases = new HashMap<>();
+        private final Map<String, Topic> topicsByName = new HashMap<>();
+        private final byte[] name = new byte[255];
+        private SelectionKey key;
+        private long framesProcessed;
+        private long framesAcked;
+        private long topicsGeneration = -1;
+
+        FeedConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= Integer.BYTES) {
+                int length = in.getInt(in.position());
+                if (length <= 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (in.remaining() < Integer.BYTES + length) {
+                    break; // Incomplete frame, wait for the rest
+                }
+                int frameEnd = in.position() + Integer.BYTES + length;
+                in.position(in.position() + Integer.BYTES);
+                processFrame(frameEnd);
+                in.position(frameEnd);
+                framesProcessed++;
+            }
+            in.compact();
+            flushAck();
+        }
+
+        // Applies the frame starting at the current position of the input buffer
+        private void processFrame(int frameEnd) throws IOException {
+            if (topicsGeneration != topicManager.getGeneration()) {
+                // A new configuration replaced the topics, cached handles are stale
+                topicsGeneration = topicManager.getGeneration();
+                topicsByName.clear();
+                aliases.clear();
+            }
+            byte type = in.get();
+            switch (type) {
+                case BIND: {
+                    if (frameEnd - in.position() < 3) {
+                        error(ERROR_MALFORMED_FRAME);
+                        return;
+                    }
+                    int alias = in.getShort() & 0xFFFF;
+                    Topic topic = readTopic(frameEnd, 0);
+                    if (topic != null) {
+                        aliases.put(alias, topic);
+                    }
+                    break;
+                }
+                case PUBLISH_ALIAS: {
+                    if (frameEnd - in.position() != 2 + Double.BYTES) {
+                        error(ERROR_MALFORMED_FRAME);
+                        return;
+                    }
+                    Topic topic = aliases.get(in.getShort() & 0xFFFF);
+                    if (topic == null) {
+                        error(ERROR_UNKNOWN_ALIAS);
+                        return;
+                    }
+                    topic.publish(new Message(in.getDouble()));
+                    break;
+                }
+                case PUBLISH_NAME: {
+                    if (frameEnd - in.position() < 1 + Double.BYTES) {
+                        error(ERROR_MALFORMED_FRAME);
+                        return;
+                    }
+                    Topic topic = readTopic(frameEnd, Double.BYTES);
+                    if (topic != null) {
+                        topic.publish(new Message(in.getDouble()));
+                    }
+                    break;
+                }
+                default:
+                    error(ERROR_MALFORMED_FRAME);
+            }
+        }
+
+        // Reads a length-prefixed topic name followed by trailing bytes, reports unknown topics
+        private Topic readTopic(int frameEnd, int trailing) throws IOException {
+            int nameLength = in.get() & 0xFF;
+            if (frameEnd - in.position() != nameLength + trailing) {
+                error(ERROR_MALFORMED_FRAME);
+                return null;
+            }
+            in.get(name, 0, nameLength);
+            String topicName = new String(name, 0, nameLength, StandardCharsets.UTF_8);
+            Topic topic = topicsByName.get(topicName);
+            if (topic == null && topicManager.containsTopic(topicName)) {
+                topic = topicManager.getTopic(topicName);
+                topicsByName.put(topicName, topic);
+            }
+            if (topic == null) {
+                error(ERROR_UNKNOWN_TOPIC);
+            }
+            return topic;
+        }
+
+        private void error(byte code) throws IOException {
+            if (out.remaining() < 4 + 1 + Long.BYTES + 1) {
+                flushAck();
+                if (out.remaining() < 4 + 1 + Long.BYTES + 1) {
+                    return; // Client is not reading its errors, drop this one
+                }
+            }
+            out.putInt(1 + Long.BYTES + 1).put(ERROR).putLong(framesProcessed).put(code);
+        }
+
+        // Queues one ACK for everything processed so far and writes what the socket accepts
+        void flushAck() throws IOException {
+            if (framesAcked != framesProcessed && out.remaining() >= 4 + 1 + Long.BYTES) {
+                out.putInt(1 + Long.BYTES).put(ACK).putLong(framesProcessed);
+                framesAcked = framesProcessed;
+            }
+            out.flip();
+            channel.write(out);
+            out.compact();
+            // Keep OP_WRITE only while output is waiting, the next ACK then carries the newest count
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void close() {
+            try {
+                if (key != null) {
+                    key.cancel();
+                }
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close a feed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The MultipartReader class reads the parts of a multipart/form-data body as streams.
+ *
+ * <p>Only a small window of the body is buffered at any time, so a servlet can copy an uploaded
+ * file of any size to disk in constant memory. Each part must be read, or skipped by asking for
+ * the next part, before the following one becomes available.</p>
+ */
+public class MultipartReader {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_PART_HEADERS_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean finished;
+    private PartInputStream current;
+
+    /**
+     * Creates a reader over a multipart body.
+     *
+     * @param in       the request body
+     * @param boundary the boundary declared in the Content-Type header, see {@link #boundaryOf(String)}
+     */
+    public MultipartReader(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buf = new byte[BUFFER_SIZE + delimiter.length];
+        // The first boundary has no leading CRLF, pretend it had one so all delimiters look alike
+        buf[0] = '\r';
+        buf[1] = '\n';
+        this.limit = 2;
+    }
+
+    /**
+     * Extracts the boundary of a multipart/form-data content type.
+     *
+     * @param contentType the value of the Content-Type header, may be null
+     * @return the boundary, or null if the content type is not multipart/form-data
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null || !contentType.regionMatches(true, 0, "multipart/form-data", 0, 19)) {
+            return null;
+        }
+        String boundary = parameterOf(contentType, "boundary");
+        return boundary == null || boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * Moves to the next part of the body, skipping what is left of the current one.
+     *
+     * @return the next part, or null if the body has no more parts
+     * @throws IOException if the body is malformed or cannot be read
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (current != null) {
+            current.skipRemaining();
+        } else if (!skipToDelimiter()) {
+            finished = true;
+            return null;
+        }
+
+        // After a delimiter comes either "--" (end of the body) or the end of the line
+        if (!ensure(2)) {
+            throw new IOException("Unexpected end of multipart body");
+        }
+        if (buf[pos] == '-' && buf[pos + 1] == '-') {
+            finished = true;
+            current = null;
+            return null;
+        }
+        readLine(); // Rest of the delimiter line, normally empty
+
+        String line;
+        String name = null;
+        String filename = null;
+        String contentType = null;
+        int headersSize = 0;
+        while (!(line = readLine()).isEmpty()) {
+            headersSize += line.length();
+            if (headersSize > MAX_PART_HEADERS_SIZE) {
+                throw new IOException("Multipart headers too large");
+            }
+            if (line.regionMatches(true, 0, "Content-Disposition:", 0, 20)) {
+                name = parameterOf(line, "name");
+                filename = parameterOf(line, "filename");
+            } else if (line.regionMatches(true, 0, "Content-Type:", 0, 13)) {
+                contentType = line.substring(13).trim();
+            }
+        }
+        current = new PartInputStream();
+        return new Part(name, filename, contentType, current);
+    }
+
+    // Returns the value of a ";"-separated parameter such as name="file", unquoted
+    private static String parameterOf(String header, String parameter) {
+        for (String element : header.split(";")) {
+            String trimmed = element.trim();
+            int equals = trimmed.indexOf('=');
+            if (equals > 0 && trimmed.substring(0, equals).trim().equalsIgnoreCase(parameter)) {
+                String value = trimmed.substring(equals + 1).trim();
+                if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    // Discards the preamble up to and including the first delimiter
+    private boolean skipToDelimiter() throws IOException {
+        PartInputStream preamble = new PartInputStream();
+        preamble.skipRemaining();
+        return preamble.foundDelimiter;
+    }
+
+    // Makes sure at least n bytes are buffered, returns false if the body ends first
+    private boolean ensure(int n) throws IOException {
+        while (limit - pos < n) {
+            if (eof) {
+                return false;
+            }
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (!ensure(1)) {
+                throw new IOException("Unexpected end of multipart body");
+            }
+            byte b = buf[pos++];
+            if (b == '\n') {
+                int length = line.length();
+                return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+            }
+            if (line.length() > MAX_PART_HEADERS_SIZE) {
+                throw new IOException("Multipart header line too long");
+            }
+            line.append((char) (b & 0xFF));
+        }
+    }
+
+    // Returns the index of the delimiter in buf[pos, limit), or -1
+    private int findDelimiter() {
+        outer:
+        for (int i = pos; i <= limit - delimiter.length; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * One part of a multipart body.
+     */
+    public static class Part {
+        private final String name;
+        private final String filename;
+        private final String contentType;
+        private final InputStream inputStream;
+
+        Part(String name, String filename, String contentType, InputStream inputStream) {
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.inputStream = inputStream;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+    }
+
+    /**
+     * Stream over the content of the current part, ending right before the next delimiter.
+     */
+    private class PartInputStream extends InputStream {
+        private final byte[] one = new byte[1];
+        private boolean done;
+        private boolean foundDelimiter;
+
+        @Override
+        public int read() throws IOException {
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int index = findDelimiter();
+                if (index == pos) {
+                    pos += delimiter.length;
+                    done = true;
+                    foundDelimiter = true;
+                    return -1;
+                }
+                // Bytes that cannot be the start of a delimiter are safe to hand out
+                int safe = index >= 0 ? index - pos : limit - pos - (eof ? 0 : delimiter.length - 1);
+                if (safe > 0) {
+                    int n = Math.min(safe, len);
+                    System.arraycopy(buf, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+                if (eof) {
+                    done = true;
+                    return -1;
+                }
+                ensure(limit - pos + 1);
+            }
+        }
+
+        void skipRemaining() throws IOException {
+            byte[] skip = new byte[BUFFER_SIZE];
+            while (read(skip, 0, skip.length) >= 0) {
+                // Discard
+            }
+            if (!foundDelimiter && current == this) {
+                throw new IOException("Unexpected end of multipart body");
+            }
+        }
+    }
+}
@@ -5,37 +5,52 @@
  */
 package server;
 
+import logging.Log;
 import servlets.Servlet;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.Arrays;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
  * The MyHTTPServer class is a simple multithreaded HTTP server implementation.
- * It supports GET, POST, and DELETE HTTP methods, allowing the registration of
- * servlets to handle specific URI paths for these methods.
+ * It supports any HTTP method, allowing the registration of servlets to handle
+ * specific URI paths for each method.
  *
- * <p>Each incoming request is processed in a separate thread using an ExecutorService.</p>
+ * <p>Each incoming connection is processed in a separate thread using an ExecutorService,
+ * either a fixed pool of platform threads or one virtual thread per connection.
+ * Connections are persistent (HTTP/1.1 keep-alive) and are closed once they stay idle for
+ * longer than the keep-alive timeout, which frees the thread for other clients.</p>
+ *
+ * <p>An {@link AdmissionControl} can bound the number of connections, the connections waiting
+ * for a thread and the request rate of each client, rejecting the excess right away.</p>
  */
 public class MyHTTPServer extends Thread implements HTTPServer {
+    private static final Log LOG = Log.get(MyHTTPServer.class);
+    // Logged for every connection, keep a sample when debugging under load
+    private static final Log CONNECTIONS_LOG = LOG.sampled(Integer.getInteger("log.connectionSampling", 1));
+
+    private static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5000;
 
     private int port;
-    private final ConcurrentMap<String, Servlet> servletsGet = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, Servlet> servletsPost = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, Servlet> servletsDelete = new ConcurrentHashMap<>();
+    private final ServletTable servlets = new ServletTable();
+    private final Map<String, ExecutorLane> lanes = new ConcurrentHashMap<>();
+    private final ExecutionMode executionMode;
     private ExecutorService threadPool;
     private volatile boolean running;
     private ServerSocket serverSocket;
+    private volatile int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private volatile AdmissionControl admission = new AdmissionControl();
 
     /**
      * Constructs a new MyHTTPServer instance.
@@ -44,109 +59,308 @@ public class MyHTTPServer extends Thread implements HTTPServer {
      * @param nThreads the number of threads to allocate in the thread pool
      */
     public MyHTTPServer(int port, int nThreads) {
+        this(port, ExecutionMode.FIXED_POOL, nThreads);
+    }
+
+    /**
+     * Constructs a new MyHTTPServer instance running its connections in the given execution mode.
+     * With {@link ExecutionMode#VIRTUAL_THREADS} every connection gets its own virtual thread and
+     * the number of threads is ignored.
+     *
+     * @param port          the port on which the server will listen for incoming connections
+     * @param executionMode whether connections run on a fixed thread pool or on virtual threads
+     * @param nThreads      the number of threads to allocate in a fixed thread pool
+     */
+    public MyHTTPServer(int port, ExecutionMode executionMode, int nThreads) {
         this.port = port;
-        this.threadPool = Executors.newFixedThreadPool(nThreads);
+        this.executionMode = executionMode;
+        this.threadPool = executionMode.newExecutor(nThreads, "HTTPConnection-");
         this.running = false;
     }
 
     /**
      * Adds a servlet to handle a specific HTTP command and URI.
      *
-     * @param httpCommand the HTTP command (e.g., "GET", "POST", "DELETE")
+     * @param httpCommand the HTTP command (e.g., "GET", "POST", "PUT")
      * @param uri         the URI path the servlet will handle
      * @param s           the servlet instance to handle the request
      */
     public void addServlet(String httpCommand, String uri, Servlet s) {
-        getRequestMap(httpCommand).put(uri, s);
+        servlets.add(httpCommand, uri, s, null);
+    }
+
+    /**
+     * Adds a servlet that runs on the threads of a lane, see {@link #addLane}.
+     *
+     * @param httpCommand the HTTP command (e.g., "GET", "POST", "PUT")
+     * @param uri         the URI path the servlet will handle
+     * @param s           the servlet instance to handle the request
+     * @param lane        the name of the lane, null for the server's own threads
+     */
+    @Override
+    public void addServlet(String httpCommand, String uri, Servlet s, String lane) {
+        if (lane != null && !lane.equals(ServletTable.DEFAULT_LANE) && !lanes.containsKey(lane)) {
+            throw new IllegalArgumentException("Unknown lane: " + lane);
+        }
+        servlets.add(httpCommand, uri, s, lane);
+    }
+
+    /**
+     * Adds a lane of threads dedicated to the servlets registered on it. A lane bounds the
+     * requests waiting for its threads; requests beyond that are answered with 503 Service
+     * Unavailable, leaving the other lanes unaffected.
+     *
+     * @param name      the name servlets are registered on the lane with
+     * @param nThreads  the number of threads of the lane, ignored with virtual threads
+     * @param maxQueued the number of requests allowed to wait for a thread, 0 for no limit
+     */
+    @Override
+    public void addLane(String name, int nThreads, int maxQueued) {
+        if (name.equals(ServletTable.DEFAULT_LANE) || lanes.containsKey(name)) {
+            throw new IllegalArgumentException("Lane already exists: " + name);
+        }
+        lanes.put(name, new ExecutorLane(name, executionMode, nThreads, maxQueued));
     }
 
     /**
      * Removes a servlet that was handling a specific HTTP command and URI.
      *
-     * @param httpCommand the HTTP command (e.g., "GET", "POST", "DELETE")
+     * @param httpCommand the HTTP command (e.g., "GET", "POST", "PUT")
      * @param uri         the URI path the servlet was handling
      */
     public void removeServlet(String httpCommand, String uri) {
-        getRequestMap(httpCommand).remove(uri);
+        servlets.remove(httpCommand, uri);
     }
 
     /**
-     * Retrieves the appropriate servlet for the given request information.
+     * Sets how long an idle persistent connection is kept open before it is closed.
      *
-     * @param ri the request information
-     * @return the servlet to handle the request, or null if no matching servlet is found
-     */
-    private Servlet getServlet(RequestParser.RequestInfo ri) {
-        String httpCommand = ri.getHttpCommand();
-        String[] uriSegments = ri.getUriSegments();
-        Servlet servlet = null;
-
-        // Try to find servlet matching the longest URI prefix
-        for (int i = uriSegments.length - 1; i >= 0; i--) {
-            String[] uriSegmentsPrefix = Arrays.copyOf(uriSegments, i + 1);
-            String uriPrefix = "/" + String.join("/", uriSegmentsPrefix);
-            servlet = getRequestMap(httpCommand).get(uriPrefix);
-            if (servlet != null) {
-                break;
-            }
-        }
-        return servlet;
+     * @param keepAliveTimeout the idle timeout in milliseconds
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Sets the limits protecting the server from overload. Without them every connection is
+     * accepted and waits for a thread however long the queue gets.
+     *
+     * @param admission the admission control applied to new connections
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
     }
 
     /**
-     * Returns the map of servlets for the given HTTP command.
+     * Hands an accepted connection to the pool, or rejects it with 503 Service Unavailable if
+     * the connection limit is reached or too many connections already wait for a thread.
      *
-     * @param httpCommand the HTTP command (e.g., "GET", "POST", "DELETE")
-     * @return the map of servlets for the specified HTTP command
+     * @param clientSocket the accepted client socket
      */
-    private ConcurrentMap<String, Servlet> getRequestMap(String httpCommand) {
-        switch (httpCommand.toUpperCase()) {
-            case "GET":
-                return servletsGet;
-            case "POST":
-                return servletsPost;
-            case "DELETE":
-                return servletsDelete;
-            default:
-                throw new IllegalArgumentException("Invalid HTTP command: " + httpCommand);
+    private void admit(Socket clientSocket) {
+        AdmissionControl admission = this.admission;
+        if (!admission.tryOpenConnection()) {
+            reject(clientSocket, admission.rejection(503, 0));
+            return;
+        }
+        if (!admission.tryEnqueue()) {
+            admission.connectionClosed();
+            reject(clientSocket, admission.rejection(503, 0));
+            return;
+        }
+        try {
+            threadPool.execute(() -> {
+                admission.dequeued();
+                handleClient(clientSocket, admission);
+            });
+        } catch (RejectedExecutionException e) {
+            admission.dequeued();
+            admission.connectionClosed();
+            reject(clientSocket, admission.rejection(503, 0));
+        }
+    }
+
+    // Answers a connection that will not be served and closes it. What the client already sent
+    // is read away first, closing a socket with unread input would reset the connection
+    private static void reject(Socket clientSocket, byte[] rejection) {
+        try (clientSocket) {
+            clientSocket.getOutputStream().write(rejection);
+            InputStream input = clientSocket.getInputStream();
+            input.skip(input.available());
+        } catch (IOException e) {
+            // Client already gone
         }
     }
 
     /**
-     * Handles a client connection, parsing the request and invoking the appropriate servlet.
+     * Handles a client connection, serving requests until the client closes it, asks to close it
+     * or stays idle for longer than the keep-alive timeout. Pipelined requests are answered in
+     * order and their responses are flushed together.
      *
      * @param clientSocket the client socket connection
+     * @param admission    the admission control that admitted the connection
      */
-    private void handleClient(Socket clientSocket) {
-        try (BufferedReader input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             OutputStream output = clientSocket.getOutputStream()) {
+    private void handleClient(Socket clientSocket, AdmissionControl admission) {
+        ClientConnection connection;
+        try {
+            clientSocket.setSoTimeout(keepAliveTimeout);
+            connection = new ClientConnection(clientSocket, admission);
+        } catch (IOException e) {
+            LOG.warn("Failed to set up a connection", e);
+            admission.connectionClosed();
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+                // Nothing more to release
+            }
+            return;
+        }
+        serveRequests(connection);
+    }
 
-            RequestParser.RequestInfo requestInfo = RequestParser.parseRequest(input);
-            Servlet servlet = this.getServlet(requestInfo);
+    /**
+     * Serves the requests of a connection one after the other. When an asynchronous servlet
+     * has not completed its response yet, the thread is released and the connection is resumed
+     * on the pool once the response is complete.
+     *
+     * @param connection the client connection
+     */
+    private void serveRequests(ClientConnection connection) {
+        try {
+            while (true) {
+                RequestParser.RequestInfo requestInfo;
+                try {
+                    requestInfo = connection.reader.next();
+                } catch (SocketTimeoutException e) {
+                    break; // Idle connection, reap it
+                }
+                if (requestInfo == null) {
+                    break;
+                }
+                long start = System.nanoTime();
+                int retryAfter = connection.admission.acquireRequest(connection.socket.getInetAddress());
+                if (retryAfter > 0) {
+                    connection.output.write(connection.admission.rejection(429, retryAfter));
+                    break;
+                }
+                if (requestInfo.expectsContinue()) {
+                    connection.output.write(Response.CONTINUE);
+                    connection.output.flush();
+                }
 
-            if (servlet != null) {
-                servlet.handle(requestInfo, output);
-            } else {
-                // Return 404 Not Found if no servlet matches the request
-                String responseBody = "404 Not Found";
-                String response = "HTTP/1.1 404 Not Found\n" +
-                        "Content-Type: text/plain\n" +
-                        "Content-Length: " + responseBody.length() + "\n\n" +
-                        responseBody;
-                output.write(response.getBytes());
-                output.flush();
+                Response response = new Response(requestInfo, connection.output, requestInfo.isKeepAlive() && running);
+                ServletTable.Route route = servlets.find(requestInfo);
+                CompletableFuture<Void> pending;
+                try {
+                    pending = serve(route, requestInfo, response, connection.admission);
+                } catch (RuntimeException e) {
+                    pending = CompletableFuture.failedFuture(e);
+                }
+                if (!pending.isDone()) {
+                    pending.whenComplete((result, failure) -> resume(connection, response, route, start, failure));
+                    return;
+                }
+                Throwable failure = pending.isCompletedExceptionally() ? pending.exceptionNow() : null;
+                if (!completeResponse(connection, response, route, start, failure)) {
+                    break;
+                }
             }
-
-            System.out.println("Client disconnected: " + clientSocket.getInetAddress());
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
+            LOG.warn("Connection failed", e);
+        }
+        connection.close();
+    }
+
+    /**
+     * Runs the servlet of a request on its lane, or on the calling thread for routes without
+     * one. While a lane runs the servlet the connection thread is released as for an
+     * asynchronous servlet.
+     *
+     * @return completes once the servlet is done with the response
+     */
+    private CompletableFuture<Void> serve(ServletTable.Route route, RequestParser.RequestInfo requestInfo,
+                                          Response response, AdmissionControl admission) throws IOException {
+        ExecutorLane lane = route == null ? null : lanes.get(route.lane);
+        if (lane == null) {
+            return servlets.serve(route, requestInfo, response);
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        boolean queued = lane.execute(() -> {
             try {
-                clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                servlets.serve(route, requestInfo, response).whenComplete((result, failure) -> {
+                    if (failure == null) {
+                        done.complete(null);
+                    } else {
+                        done.completeExceptionally(failure);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                done.completeExceptionally(e);
             }
+        });
+        if (!queued) {
+            admission.rejectRequest(response);
+            done.complete(null);
+        }
+        return done;
+    }
+
+    // Continues a connection on the pool once its asynchronous response is complete
+    private void resume(ClientConnection connection, Response response, ServletTable.Route route,
+                        long start, Throwable failure) {
+        try {
+            threadPool.execute(() -> {
+                try {
+                    if (completeResponse(connection, response, route, start, failure)) {
+                        serveRequests(connection);
+                        return;
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Connection failed", e);
+                }
+                connection.close();
+            });
+        } catch (RejectedExecutionException e) {
+            connection.close(); // Server is shutting down
+        }
+    }
+
+    /**
+     * Ends a response, records it in the route metrics and decides what happens to the
+     * connection next.
+     *
+     * @return true if the connection should go on with the next request
+     */
+    private boolean completeResponse(ClientConnection connection, Response response, ServletTable.Route route,
+                                     long start, Throwable failure) throws IOException {
+        try {
+            if (failure == null) {
+                response.finish();
+            } else {
+                LOG.error("Servlet failed", ServletTable.causeOf(failure));
+                response.fail();
+            }
+        } finally {
+            servlets.recordRequest(route, response.getStatus(), start);
+        }
+
+        WebSocketEndpoint upgrade = response.getUpgrade();
+        if (upgrade != null) {
+            connection.output.flush();
+            connection.socket.setSoTimeout(0); // WebSocket connections may stay quiet for long
+            InputStream frames = new BufferedInputStream(connection.reader.remainingInput());
+            // The session closes the connection when it ends, on a thread of its own
+            connection.handOff();
+            new WebSocketSession(upgrade, frames, connection.output, connection::release).start();
+            return false;
+        }
+        if (!response.isKeepAlive()) {
+            return false;
         }
+        if (!connection.reader.hasBufferedInput()) {
+            connection.output.flush();
+        }
+        return true;
     }
 
     /**
@@ -159,24 +373,24 @@ public class MyHTTPServer extends Thread implements HTTPServer {
             serverSocket.setSoTimeout(1000); // 1 second timeout to allow periodic checks
             running = true;
 
-            System.out.println("Server started on port " + port);
+            LOG.info("Server started on port {}", port);
 
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("Client connected: " + clientSocket.getInetAddress());
-                    threadPool.submit(() -> handleClient(clientSocket));
+                    CONNECTIONS_LOG.debug("Client connected: {}", clientSocket.getInetAddress());
+                    admit(clientSocket);
                 } catch (SocketTimeoutException e) {
                     // Timeout to check running flag periodically
                 } catch (IOException e) {
                     if (running) {
-                        e.printStackTrace();
+                        LOG.warn("Failed to accept a connection", e);
                     } else {
-                        System.out.println("Server socket closed, stopping server.");
+                        LOG.info("Server socket closed, stopping server.");
                     }
                 }
             }
-            System.out.println("Server stopped");
+            LOG.info("Server stopped");
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
@@ -184,44 +398,76 @@ public class MyHTTPServer extends Thread implements HTTPServer {
                 if (serverSocket != null && !serverSocket.isClosed())
                     serverSocket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                LOG.warn("Failed to close the server socket", e);
             }
         }
     }
 
-    /**
-     * Closes all registered servlets.
-     */
-    private void closeServlets() {
-        servletsGet.values().forEach(servlet -> {
-            try { servlet.close(); } catch (IOException e) { e.printStackTrace(); }
-        });
-        servletsPost.values().forEach(servlet -> {
-            try { servlet.close(); } catch (IOException e) { e.printStackTrace(); }
-        });
-        servletsDelete.values().forEach(servlet -> {
-            try { servlet.close(); } catch (IOException e) { e.printStackTrace(); }
-        });
-    }
-
     /**
      * Stops the server and shuts down all resources.
      */
     @Override
     public void close() {
         running = false;
-        closeServlets();
+        servlets.closeAll();
+        lanes.values().forEach(ExecutorLane::shutdown);
 
         threadPool.shutdown();
         try {
             if (!threadPool.awaitTermination(60, TimeUnit.SECONDS)) {
                 threadPool.shutdownNow();
                 if (!threadPool.awaitTermination(60, TimeUnit.SECONDS))
-                    System.err.println("ExecutorService did not terminate");
+                    LOG.warn("ExecutorService did not terminate");
             }
         } catch (InterruptedException ie) {
             threadPool.shutdownNow();
             Thread.currentThread().interrupt();
         }
     }
+
+    /**
+     * The socket of a client connection with its request reader and buffered output.
+     */
+    private static class ClientConnection {
+        private final Socket socket;
+        private final AdmissionControl admission;
+        private final RequestReader reader;
+        private final OutputStream output;
+
+        // Set once a WebSocket session owns the connection
+        private volatile boolean handedOff;
+
+        ClientConnection(Socket socket, AdmissionControl admission) throws IOException {
+            this.socket = socket;
+            this.admission = admission;
+            this.reader = new RequestReader(socket.getInputStream());
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void handOff() {
+            handedOff = true;
+        }
+
+        // Closes the connection unless a WebSocket session took it over
+        void close() {
+            if (!handedOff) {
+                release();
+            }
+        }
+
+        void release() {
+            try {
+                output.flush();
+            } catch (IOException e) {
+                // Client already gone
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close a connection", e);
+            }
+            admission.connectionClosed();
+            CONNECTIONS_LOG.debug("Client disconnected: {}", socket.getInetAddress());
+        }
+    }
 }
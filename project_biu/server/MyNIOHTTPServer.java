@@ -0,0 +1,1017 @@
+package server;
+
+import logging.Log;
+import servlets.Servlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MyNIOHTTPServer class is a non-blocking HTTP server built on a
+ * {@link ServerSocketChannel} and {@link Selector}s.
+ *
+ * <p>The server thread accepts connections and hands them to one of several reactor
+ * threads. Reactors read requests without blocking and only once a complete request
+ * has arrived is it dispatched to the worker pool, where the servlet runs. Request bodies
+ * are collected by a {@link BodySpool} as they arrive, large ones in a temporary file written off
+ * the reactor, which stops reading a body while its writes lag behind. The response
+ * produced by the servlet is queued to the reactor, which writes it back, so slow clients never
+ * hold a worker thread while their bytes trickle in or out. Streamed responses are queued piece
+ * by piece as the servlet flushes; a worker only waits once too much of its output is pending.</p>
+ *
+ * <p>Connections are persistent (HTTP/1.1 keep-alive). Pipelined requests are served one
+ * after the other in arrival order, and connections left idle for longer than the keep-alive
+ * timeout are reaped by their reactor. Idle connections cost no thread at all.</p>
+ *
+ * <p>A connection upgraded to WebSocket leaves its reactor and is served by a
+ * {@link WebSocketSession} on a virtual thread with blocking I/O for the rest of its life.</p>
+ *
+ * <p>An {@link AdmissionControl} can bound the number of connections, the requests waiting
+ * for a worker and the request rate of each client, rejecting the excess right away.</p>
+ *
+ * <p>Besides its TCP port the server can listen on a Unix domain socket, sparing clients on the
+ * same host the TCP stack. Both listeners serve the same servlets.</p>
+ */
+public class MyNIOHTTPServer extends Thread implements HTTPServer {
+    private static final Log LOG = Log.get(MyNIOHTTPServer.class);
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5000;
+    private static final long REAP_INTERVAL_MILLIS = 1000;
+    private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final int port;
+    private final ServletTable servlets = new ServletTable();
+    private final Map<String, ExecutorLane> lanes = new ConcurrentHashMap<>();
+    private final ExecutionMode executionMode;
+    private final ExecutorService workers;
+    // Writes large request bodies to their temporary files, the reactors never block on the disk
+    private final ExecutorService spoolWriters = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("BodySpool-", 0).factory());
+    private final Reactor[] reactors;
+    private volatile boolean running;
+    private Selector acceptSelector;
+    private int nextReactor;
+    private volatile int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private volatile AdmissionControl admission = new AdmissionControl();
+    private volatile Path unixSocketPath;
+
+    /**
+     * Constructs a new MyNIOHTTPServer instance.
+     *
+     * @param port      the port on which the server will listen for incoming connections
+     * @param nReactors the number of reactor threads performing socket I/O
+     * @param nWorkers  the number of worker threads running servlets
+     */
+    public MyNIOHTTPServer(int port, int nReactors, int nWorkers) {
+        this(port, nReactors, ExecutionMode.FIXED_POOL, nWorkers);
+    }
+
+    /**
+     * Constructs a new MyNIOHTTPServer instance running its servlets in the given execution mode.
+     *
+     * @param port          the port on which the server will listen for incoming connections
+     * @param nReactors     the number of reactor threads performing socket I/O
+     * @param executionMode whether servlets run on a fixed worker pool or on virtual threads
+     * @param nWorkers      the number of worker threads of a fixed pool
+     */
+    public MyNIOHTTPServer(int port, int nReactors, ExecutionMode executionMode, int nWorkers) {
+        if (nReactors <= 0) {
+            throw new IllegalArgumentException("Number of reactors must be positive");
+        }
+        this.port = port;
+        this.executionMode = executionMode;
+        this.workers = executionMode.newExecutor(nWorkers, "NIOWorker-");
+        this.reactors = new Reactor[nReactors];
+        for (int i = 0; i < nReactors; i++) {
+            reactors[i] = new Reactor(i);
+        }
+        this.running = false;
+    }
+
+    @Override
+    public void addServlet(String httpCommand, String uri, Servlet s) {
+        servlets.add(httpCommand, uri, s, null);
+    }
+
+    /**
+     * Adds a servlet that runs on the threads of a lane, see {@link #addLane}.
+     *
+     * @param httpCommand the HTTP command (e.g., "GET", "POST", "PUT")
+     * @param uri         the URI path the servlet will handle
+     * @param s           the servlet instance to handle the request
+     * @param lane        the name of the lane, null for the server's own threads
+     */
+    @Override
+    public void addServlet(String httpCommand, String uri, Servlet s, String lane) {
+        if (lane != null && !lane.equals(ServletTable.DEFAULT_LANE) && !lanes.containsKey(lane)) {
+            throw new IllegalArgumentException("Unknown lane: " + lane);
+        }
+        servlets.add(httpCommand, uri, s, lane);
+    }
+
+    /**
+     * Adds a lane of threads dedicated to the servlets registered on it. A lane bounds the
+     * requests waiting for its threads; requests beyond that are answered with 503 Service
+     * Unavailable, leaving the other lanes unaffected.
+     *
+     * @param name      the name servlets are registered on the lane with
+     * @param nThreads  the number of threads of the lane, ignored with virtual threads
+     * @param maxQueued the number of requests allowed to wait for a thread, 0 for no limit
+     */
+    @Override
+    public void addLane(String name, int nThreads, int maxQueued) {
+        if (name.equals(ServletTable.DEFAULT_LANE) || lanes.containsKey(name)) {
+            throw new IllegalArgumentException("Lane already exists: " + name);
+        }
+        lanes.put(name, new ExecutorLane(name, executionMode, nThreads, maxQueued));
+    }
+
+    @Override
+    public void removeServlet(String httpCommand, String uri) {
+        servlets.remove(httpCommand, uri);
+    }
+
+    /**
+     * Sets how long an idle persistent connection is kept open before it is closed.
+     *
+     * @param keepAliveTimeout the idle timeout in milliseconds
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Sets the limits protecting the server from overload. Without them every connection is
+     * accepted and every request waits for a worker however long the queue gets.
+     *
+     * @param admission the admission control applied to new connections
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Makes the server listen on a Unix domain socket as well as on its TCP port. A file left
+     * at the path by an earlier run is replaced, and the file is deleted when the server stops.
+     * Must be called before the server is started.
+     *
+     * @param unixSocketPath the path of the socket file, or null for TCP only
+     */
+    public void setUnixSocketPath(Path unixSocketPath) {
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    /**
+     * Accepts incoming connections and distributes them between the reactors.
+     */
+    @Override
+    public void run() {
+        Path unixSocketPath = this.unixSocketPath;
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             ServerSocketChannel unixChannel = unixSocketPath != null ? openUnixChannel(unixSocketPath) : null) {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            acceptSelector = Selector.open();
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            if (unixChannel != null) {
+                unixChannel.configureBlocking(false);
+                unixChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            }
+            running = true;
+
+            for (Reactor reactor : reactors) {
+                reactor.start();
+            }
+            LOG.info("NIO server started on port {} with {} reactor(s)", port, reactors.length);
+            if (unixChannel != null) {
+                LOG.info("NIO server listening on Unix domain socket {}", unixSocketPath);
+            }
+
+            while (running) {
+                acceptSelector.select(1000); // 1 second timeout to allow periodic checks
+                for (SelectionKey key : acceptSelector.selectedKeys()) {
+                    accept((ServerSocketChannel) key.channel());
+                }
+                acceptSelector.selectedKeys().clear();
+            }
+            LOG.info("Server stopped");
+        } catch (ClosedSelectorException e) {
+            LOG.info("Server selector closed, stopping server.");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                if (acceptSelector != null) {
+                    acceptSelector.close();
+                }
+                if (unixSocketPath != null) {
+                    Files.deleteIfExists(unixSocketPath);
+                }
+            } catch (IOException e) {
+                LOG.warn("Failed to release the listeners", e);
+            }
+        }
+    }
+
+    // Failures concern a single client, they are logged and the server goes on accepting
+    private void accept(ServerSocketChannel serverChannel) {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                // Such as an aborted handshake or running out of file descriptors. The next select
+                // retries, after a pause so a lasting condition does not spin the accept loop
+                LOG.warn("Failed to accept a connection: {}", e);
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            AdmissionControl admission = this.admission;
+            if (!admission.tryOpenConnection()) {
+                reject(channel, admission.rejection(503, 0));
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                LOG.warn("Failed to set up a connection: {}", e);
+                admission.connectionClosed();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing more to release
+                }
+                continue;
+            }
+            reactors[nextReactor].register(channel, admission);
+            nextReactor = (nextReactor + 1) % reactors.length;
+        }
+    }
+
+    // Binds a Unix domain socket, a stale socket file would make the bind fail
+    private static ServerSocketChannel openUnixChannel(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(UnixDomainSocketAddress.of(path));
+            path.toFile().deleteOnExit(); // Also when the JVM ends without closing the server
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    // Answers a connection that will not be served and closes it, the response fits any socket buffer
+    private static void reject(SocketChannel channel, byte[] rejection) {
+        try (channel) {
+            channel.configureBlocking(false);
+            channel.write(ByteBuffer.wrap(rejection));
+            discardInput(channel, ByteBuffer.allocate(READ_BUFFER_SIZE));
+        } catch (IOException e) {
+            // Client already gone
+        }
+    }
+
+    // Reads away what the client sent, closing a socket with unread input resets the connection
+    // and the response still in flight would be lost
+    private static void discardInput(SocketChannel channel, ByteBuffer scratch) throws IOException {
+        scratch.clear();
+        while (channel.read(scratch) > 0) {
+            scratch.clear();
+        }
+    }
+
+    /**
+     * Runs the matching servlet, its response being queued to the reactor as it is written.
+     * An asynchronous servlet may complete the response later, from another thread; the
+     * connection then waits for it before reading its next request.
+     *
+     * @param connection  the connection the request was read from
+     * @param requestInfo the request
+     * @param route       the route of the request, null if none matches
+     * @param body        the spooled body of the request
+     * @param start       when the request was complete, for the route metrics
+     */
+    private void handleRequest(Connection connection, RequestParser.RequestInfo requestInfo,
+                               ServletTable.Route route, BodySpool body, long start) {
+        ConnectionOutputStream output = new ConnectionOutputStream(connection);
+        Response response = new Response(requestInfo, output, requestInfo.isKeepAlive() && running);
+        CompletableFuture<Void> pending;
+        try {
+            pending = servlets.serve(route, requestInfo, response);
+        } catch (IOException | RuntimeException e) {
+            pending = CompletableFuture.failedFuture(e);
+        }
+        if (pending.isDone()) {
+            Throwable failure = pending.isCompletedExceptionally() ? pending.exceptionNow() : null;
+            completeRequest(connection, response, output, body, route, start, failure);
+            return;
+        }
+        pending.whenComplete((result, failure) -> {
+            try {
+                workers.execute(() -> completeRequest(connection, response, output, body, route, start, failure));
+            } catch (RejectedExecutionException e) {
+                body.dispose(); // Server is shutting down
+                connection.reactor.complete(connection, false, null);
+            }
+        });
+    }
+
+    // Ends the response of a request and hands the connection back to its reactor
+    private void completeRequest(Connection connection, Response response, ConnectionOutputStream output,
+                                 BodySpool body, ServletTable.Route route, long start, Throwable failure) {
+        try {
+            if (failure == null) {
+                response.finish();
+            } else {
+                if (!connection.closed) {
+                    LOG.error("Servlet failed", ServletTable.causeOf(failure));
+                }
+                response.fail();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!connection.closed) {
+                LOG.warn("Failed to end a response", e);
+            }
+            try {
+                response.fail();
+            } catch (IOException ignored) {
+                // The connection is closed below
+            }
+        } finally {
+            body.dispose();
+            servlets.recordRequest(route, response.getStatus(), start);
+        }
+        try {
+            output.flush();
+        } catch (IOException e) {
+            // Connection already closed, nothing left to send
+        }
+        connection.reactor.complete(connection, response.isKeepAlive(), response.getUpgrade());
+    }
+
+    /**
+     * Stops the server and shuts down all resources.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (acceptSelector != null) {
+            acceptSelector.wakeup();
+        }
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+        servlets.closeAll();
+        lanes.values().forEach(ExecutorLane::shutdown);
+
+        workers.shutdown();
+        spoolWriters.shutdown();
+        try {
+            if (!workers.awaitTermination(60, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+                if (!workers.awaitTermination(60, TimeUnit.SECONDS))
+                    LOG.warn("ExecutorService did not terminate");
+            }
+        } catch (InterruptedException ie) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Per-connection state owned by a reactor.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final Reactor reactor;
+        private final AdmissionControl admission;
+        private final InetAddress clientAddress; // Null for Unix domain sockets
+        private SelectionKey key;
+        private byte[] in = new byte[READ_BUFFER_SIZE];
+        private int inLength;
+        private final Queue<Object> out = new ArrayDeque<>(); // ByteBuffers and FileRegions
+        private boolean responseComplete;
+        private WebSocketEndpoint upgrade;
+        private boolean keepAlive;
+        private boolean processing;
+        // Bytes queued by the worker but not yet written, guarded by the connection
+        private int pendingOutput;
+        private volatile boolean closed;
+        private RequestParser.RequestInfo pendingRequest;
+        private BodySpool pendingBody;
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, Reactor reactor, AdmissionControl admission) {
+            this.channel = channel;
+            this.reactor = reactor;
+            this.admission = admission;
+            this.clientAddress = inetAddressOf(channel);
+        }
+
+        private static InetAddress inetAddressOf(SocketChannel channel) {
+            try {
+                return channel.getRemoteAddress() instanceof InetSocketAddress address ? address.getAddress() : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        // Waits until the backlog of unwritten output leaves room for n more bytes
+        synchronized void reserve(int n) throws IOException {
+            while (pendingOutput > 0 && pendingOutput + n > MAX_PENDING_OUTPUT && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            pendingOutput += n;
+        }
+
+        synchronized void released(int n) {
+            pendingOutput -= n;
+            notifyAll();
+        }
+
+        // Waits until the reactor has written a file region, the worker may then close the file
+        synchronized void awaitWritten(FileRegion region) throws IOException {
+            while (!region.written && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (!region.written) {
+                throw new IOException("Connection closed");
+            }
+        }
+
+        synchronized void written(FileRegion region) {
+            region.written = true;
+            notifyAll();
+        }
+
+        // Returns false if the connection was already closed
+        synchronized boolean markClosed() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * A part of a file queued on a connection, written by the reactor with
+     * {@link FileChannel#transferTo} so its bytes never enter the heap.
+     */
+    private static class FileRegion {
+        private final FileChannel file;
+        private long position;
+        private final long end;
+        private boolean written; // Guarded by the connection
+
+        FileRegion(FileChannel file, long position, long length) {
+            this.file = file;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        // Returns true once the whole region is written, false if the socket buffer is full
+        boolean transferTo(SocketChannel channel) throws IOException {
+            while (position < end) {
+                long n = file.transferTo(position, end - position, channel);
+                if (n == 0) {
+                    if (position >= file.size()) {
+                        throw new EOFException("File shorter than its announced length");
+                    }
+                    return false;
+                }
+                position += n;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The transport a {@link Response} writes to on a non-blocking connection. Bytes are
+     * gathered until flushed, then queued to the reactor owning the connection. Files are
+     * queued as regions the reactor sends straight from the file to the socket.
+     */
+    private static class ConnectionOutputStream extends OutputStream implements Response.FileTransport {
+        private final Connection connection;
+        // Each buffer is handed to the reactor on flush; the next one is only allocated once
+        // there is something to write
+        private byte[] buf;
+        private int count;
+
+        ConnectionOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureCapacity(1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            ensureCapacity(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (connection.closed) {
+                throw new IOException("Connection closed");
+            }
+            if (count == 0) {
+                return;
+            }
+            connection.reserve(count);
+            connection.reactor.send(connection, ByteBuffer.wrap(buf, 0, count));
+            buf = null;
+            count = 0;
+        }
+
+        @Override
+        public void transferFile(FileChannel file, long position, long length) throws IOException {
+            flush();
+            FileRegion region = new FileRegion(file, position, length);
+            connection.reactor.send(connection, region);
+            connection.awaitWritten(region);
+        }
+
+        private void ensureCapacity(int n) throws IOException {
+            if (buf != null && count + n <= buf.length) {
+                return;
+            }
+            if (buf != null && count + n > MAX_PENDING_OUTPUT / 2) {
+                flush(); // Large responses are queued in pieces so the backlog stays bounded
+            }
+            if (buf == null) {
+                buf = new byte[Math.max(READ_BUFFER_SIZE, n)];
+            } else {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+            }
+        }
+    }
+
+    /**
+     * Reads from a blocking channel. Unlike the streams of {@link java.nio.channels.Channels} it
+     * takes no lock shared with writes, so a WebSocket can send while its reader waits, and
+     * unlike the socket adaptor it works for Unix domain sockets too.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel channel;
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    /**
+     * Writes to a blocking channel, the counterpart of {@link ChannelInputStream}.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel channel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * A reactor thread multiplexing the socket I/O of many connections over one selector.
+     * Other threads interact with it only by queueing tasks that run on the reactor thread.
+     */
+    private class Reactor extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        Reactor(int index) {
+            try {
+                this.selector = Selector.open();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            setName("NIOReactor-" + index);
+            setDaemon(true);
+        }
+
+        void register(SocketChannel channel, AdmissionControl admission) {
+            runOnReactor(() -> {
+                Connection connection = new Connection(channel, this, admission);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    closeConnection(connection);
+                }
+            });
+        }
+
+        // Queues part of a response for writing, a ByteBuffer or a FileRegion
+        void send(Connection connection, Object data) {
+            runOnReactor(() -> {
+                connection.out.add(data);
+                if (connection.key.isValid()) {
+                    connection.key.interestOps(SelectionKey.OP_WRITE);
+                }
+            });
+        }
+
+        // Marks the response as fully queued
+        void complete(Connection connection, boolean keepAlive, WebSocketEndpoint upgrade) {
+            runOnReactor(() -> {
+                connection.responseComplete = true;
+                connection.keepAlive = keepAlive;
+                connection.upgrade = upgrade;
+                if (connection.key.isValid()) {
+                    connection.key.interestOps(SelectionKey.OP_WRITE);
+                }
+            });
+        }
+
+        void shutdown() {
+            runOnReactor(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    closeConnection((Connection) key.attachment());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close a reactor selector", e);
+                }
+            });
+        }
+
+        private void runOnReactor(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastReap = System.currentTimeMillis();
+            try {
+                while (selector.isOpen()) {
+                    selector.select(REAP_INTERVAL_MILLIS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    if (!selector.isOpen()) {
+                        break;
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                onReadable(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                onWritable(connection);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            closeConnection(connection);
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastReap >= REAP_INTERVAL_MILLIS) {
+                        reapIdleConnections(now);
+                        lastReap = now;
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // Reactor was shut down
+            } catch (IOException e) {
+                LOG.error("Reactor {} stopped", getName(), e);
+            }
+        }
+
+        private void onReadable(Connection connection) throws IOException {
+            readBuffer.clear();
+            int read = connection.channel.read(readBuffer);
+            if (read < 0) {
+                closeConnection(connection);
+                return;
+            }
+            readBuffer.flip();
+            if (connection.inLength + read > connection.in.length) {
+                if (connection.inLength + read > RequestParser.MAX_HEAD_SIZE + READ_BUFFER_SIZE) {
+                    throw new IOException("Request head too large");
+                }
+                byte[] grown = new byte[Math.max(connection.in.length * 2, connection.inLength + read)];
+                System.arraycopy(connection.in, 0, grown, 0, connection.inLength);
+                connection.in = grown;
+            }
+            readBuffer.get(connection.in, connection.inLength, read);
+            connection.inLength += read;
+            connection.lastActive = System.currentTimeMillis();
+            dispatchNext(connection);
+        }
+
+        // Parses the next buffered request head, feeds its body to the spool and, once the
+        // body is complete, hands the request to the worker pool
+        private void dispatchNext(Connection connection) throws IOException {
+            if (connection.processing) {
+                return;
+            }
+            if (connection.pendingRequest == null) {
+                int headEnd = RequestParser.headEnd(connection.in, 0, connection.inLength);
+                if (headEnd < 0) {
+                    return;
+                }
+                RequestParser.RequestInfo request = RequestParser.parseHead(connection.in, 0, headEnd);
+                consume(connection, headEnd);
+                if (!request.isChunked() && request.getContentLength() < 0) {
+                    throw new IOException("Invalid Content-Length");
+                }
+                int retryAfter = connection.admission.acquireRequest(connection.clientAddress);
+                if (retryAfter > 0) {
+                    reject(connection, connection.admission.rejection(429, retryAfter));
+                    return;
+                }
+                connection.pendingRequest = request;
+                connection.pendingBody = new BodySpool(request.getContentLength(), request.isChunked(), spoolWriters);
+                if (request.expectsContinue()) {
+                    connection.channel.write(ByteBuffer.wrap(Response.CONTINUE));
+                }
+            }
+
+            BodySpool spool = connection.pendingBody;
+            consume(connection, spool.feed(connection.in, 0, connection.inLength));
+            CompletableFuture<Void> written = spool.written();
+            if (!written.isDone() && (spool.isComplete() || spool.isBacklogged())) {
+                awaitSpool(connection, written);
+                return;
+            }
+            if (written.isCompletedExceptionally()) {
+                throw new IOException("Cannot spool request body", written.exceptionNow());
+            }
+            if (spool.isComplete()) {
+                RequestParser.RequestInfo request = connection.pendingRequest;
+                BodySpool body = connection.pendingBody;
+                connection.pendingRequest = null;
+                connection.pendingBody = null;
+                ServletTable.Route route = servlets.find(request);
+                ExecutorLane lane = route == null ? null : lanes.get(route.lane);
+                long start = System.nanoTime();
+                if (lane != null) {
+                    dispatchToLane(connection, request, route, body, lane, start);
+                } else {
+                    dispatchToWorkers(connection, request, route, body, start);
+                }
+            }
+        }
+
+        // Stops reading the connection until the spool's file has caught up with the body, then
+        // goes on with it
+        private void awaitSpool(Connection connection, CompletableFuture<Void> written) {
+            connection.processing = true;
+            connection.key.interestOps(0);
+            written.whenComplete((result, failure) -> runOnReactor(() -> {
+                if (connection.closed || !connection.key.isValid()) {
+                    return;
+                }
+                connection.processing = false;
+                connection.lastActive = System.currentTimeMillis();
+                connection.key.interestOps(SelectionKey.OP_READ);
+                try {
+                    dispatchNext(connection);
+                } catch (IOException | RuntimeException e) {
+                    closeConnection(connection);
+                }
+            }));
+        }
+
+        private void dispatchToWorkers(Connection connection, RequestParser.RequestInfo request,
+                                       ServletTable.Route route, BodySpool body, long start) throws IOException {
+            if (!connection.admission.tryEnqueue()) {
+                body.dispose();
+                reject(connection, connection.admission.rejection(503, 0));
+                return;
+            }
+            request.setBody(body.open());
+            connection.processing = true;
+            connection.key.interestOps(0); // Stop reading until the response is written
+            try {
+                workers.execute(() -> {
+                    connection.admission.dequeued();
+                    handleRequest(connection, request, route, body, start);
+                });
+            } catch (RejectedExecutionException e) {
+                connection.admission.dequeued();
+                body.dispose();
+                closeConnection(connection); // Server is shutting down
+            }
+        }
+
+        // Routes with a lane bypass the worker queue, the lane bounds its own queue instead
+        private void dispatchToLane(Connection connection, RequestParser.RequestInfo request,
+                                    ServletTable.Route route, BodySpool body, ExecutorLane lane,
+                                    long start) throws IOException {
+            request.setBody(body.open());
+            connection.processing = true;
+            connection.key.interestOps(0); // Stop reading until the response is written
+            if (!lane.execute(() -> handleRequest(connection, request, route, body, start))) {
+                body.dispose();
+                reject(connection, connection.admission.rejection(503, 0));
+            }
+        }
+
+        // Answers the connection with a rejection instead of the pending request, then closes it
+        private void reject(Connection connection, byte[] rejection) {
+            connection.processing = true;
+            connection.out.add(ByteBuffer.wrap(rejection));
+            connection.responseComplete = true;
+            connection.keepAlive = false;
+            connection.key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        // Drops the first n bytes of the connection's input buffer
+        private void consume(Connection connection, int n) {
+            System.arraycopy(connection.in, n, connection.in, 0, connection.inLength - n);
+            connection.inLength -= n;
+        }
+
+        private void onWritable(Connection connection) throws IOException {
+            Object data;
+            while ((data = connection.out.peek()) != null) {
+                if (data instanceof FileRegion region) {
+                    if (!region.transferTo(connection.channel)) {
+                        return; // Socket buffer full, wait for the next OP_WRITE
+                    }
+                    connection.written(region);
+                } else {
+                    ByteBuffer buffer = (ByteBuffer) data;
+                    int written = connection.channel.write(buffer);
+                    connection.released(written);
+                    if (buffer.hasRemaining()) {
+                        return; // Socket buffer full, wait for the next OP_WRITE
+                    }
+                }
+                connection.out.poll();
+            }
+            if (!connection.responseComplete) {
+                connection.key.interestOps(0); // Wait for the servlet to queue more
+                return;
+            }
+            connection.responseComplete = false;
+            if (connection.upgrade != null) {
+                // The key is deregistered by the next select, only then can the channel block
+                connection.key.cancel();
+                runOnReactor(() -> startWebSocket(connection));
+                return;
+            }
+            if (!connection.keepAlive) {
+                closeConnection(connection);
+                return;
+            }
+            connection.processing = false;
+            connection.lastActive = System.currentTimeMillis();
+            connection.key.interestOps(SelectionKey.OP_READ);
+            dispatchNext(connection); // A pipelined request may already be waiting
+        }
+
+        // Takes an upgraded connection off the selector and runs its WebSocket session on a
+        // thread of its own with blocking I/O, starting with any frames that were already read
+        private void startWebSocket(Connection connection) {
+            try {
+                connection.channel.configureBlocking(true);
+                InputStream frames = new SequenceInputStream(
+                        new ByteArrayInputStream(connection.in, 0, connection.inLength),
+                        new BufferedInputStream(new ChannelInputStream(connection.channel)));
+                OutputStream output = new BufferedOutputStream(new ChannelOutputStream(connection.channel));
+                new WebSocketSession(connection.upgrade, frames, output, () -> {
+                    connection.channel.close();
+                    if (connection.markClosed()) {
+                        connection.admission.connectionClosed();
+                    }
+                }).start();
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Failed to start a WebSocket session", e);
+                closeConnection(connection);
+            }
+        }
+
+        // Closes connections that have been waiting for a request for longer than the keep-alive timeout
+        private void reapIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!connection.processing && now - connection.lastActive > keepAliveTimeout) {
+                    closeConnection(connection);
+                }
+            }
+        }
+
+        private void closeConnection(Connection connection) {
+            if (connection.markClosed()) {
+                connection.admission.connectionClosed();
+            }
+            if (connection.pendingBody != null) {
+                connection.pendingBody.dispose();
+                connection.pendingBody = null;
+            }
+            try {
+                if (connection.key != null) {
+                    connection.key.cancel();
+                }
+                if (connection.channel.isOpen() && !connection.channel.isBlocking()) {
+                    discardInput(connection.channel, readBuffer);
+                }
+                connection.channel.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close a connection", e);
+            }
+        }
+    }
+}
@@ -1,70 +1,190 @@
 package server;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
- * The RequestParser class is responsible for parsing HTTP requests from a BufferedReader.
+ * The RequestParser class is responsible for parsing HTTP requests.
+ *
+ * <p>Requests are parsed directly on their bytes. The parser only records where the request
+ * line and each header line start and end; the strings, arrays and maps exposed by
+ * {@link RequestInfo} are created lazily, the first time a servlet asks for them.</p>
  */
 public class RequestParser {
 
+    static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    // Layout of the marks array: request line offsets followed by 4 offsets per header
+    private static final int METHOD_END = 0;
+    private static final int TARGET_START = 1;
+    private static final int QUERY_START = 2;
+    private static final int TARGET_END = 3;
+    private static final int VERSION_START = 4;
+    private static final int VERSION_END = 5;
+    private static final int HEADERS = 6;
+
+    private static final InputStream EMPTY_BODY = InputStream.nullInputStream();
+    private static final String[] KNOWN_METHODS = {"GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH"};
+
     /**
-     * Parses an HTTP request from the provided BufferedReader.
+     * Parses exactly one HTTP request from the provided stream.
      *
-     * @param reader The BufferedReader to read the HTTP request from.
+     * @param in The stream to read the HTTP request from.
      * @return A RequestInfo object containing parsed request details.
      * @throws IOException If an I/O error occurs while reading or parsing the request.
      */
-    public static RequestInfo parseRequest(BufferedReader reader) throws IOException {
-        try {
-            // Read request line
-            String[] firstLine = reader.readLine().split(" ");
-            String httpCommand = firstLine[0];
-            String uri = firstLine[1];
-
-            // Split URI into path and query parameters
-            String[] uriParts = uri.split("\\?");
-            String[] uriSegments = parseUriSegments(uriParts[0]);
-            Map<String, String> parameters = new HashMap<>();
-            if (uriParts.length > 1) {
-                parameters = parseParameters(uriParts[1]);
-            }
-
-            // Parse headers
-            Map<String, String> headers = new HashMap<>();
-            String line;
-            int contentLength = 0;
-            while (!(line = reader.readLine()).isEmpty()) {
-                String[] headerParts = line.split(": ");
-                if (headerParts.length == 2) {
-                    headers.put(headerParts[0], headerParts[1]);
-                    if (headerParts[0].equalsIgnoreCase("Content-Length")) {
-                        contentLength = Integer.parseInt(headerParts[1]);
-                    }
-                }
+    public static RequestInfo parseRequest(InputStream in) throws IOException {
+        RequestInfo requestInfo = new RequestReader(in).next();
+        if (requestInfo == null) {
+            throw new IOException("Connection closed before a request was received");
+        }
+        return requestInfo;
+    }
+
+    /**
+     * Parses the head (request line and headers) of a request held in a buffer. The buffer may be
+     * reused by the caller afterwards: the request keeps its own copy of the head. The body is
+     * attached separately with {@link RequestInfo#setBody(InputStream)}.
+     *
+     * @param buf     The buffer holding the request.
+     * @param off     The offset of the request in the buffer.
+     * @param headEnd The end of the head, as returned by {@link #headEnd(byte[], int, int)}.
+     * @return A RequestInfo object containing parsed request details.
+     * @throws IOException If the request is malformed.
+     */
+    static RequestInfo parseHead(byte[] buf, int off, int headEnd) throws IOException {
+        byte[] head = Arrays.copyOfRange(buf, off, headEnd);
+        return new RequestInfo(head, scanHead(head));
+    }
+
+    /**
+     * Finds the end of the head of the request starting in a buffer.
+     *
+     * @param buf The buffer holding the bytes received so far.
+     * @param off The offset of the first byte of the request.
+     * @param end The end of the valid bytes in the buffer.
+     * @return The index just past the blank line ending the head, or -1 if it is not complete yet.
+     * @throws IOException If the head grows larger than allowed.
+     */
+    static int headEnd(byte[] buf, int off, int end) throws IOException {
+        int headEnd = headLength(buf, off, end);
+        if (headEnd < 0 && end - off > MAX_HEAD_SIZE) {
+            throw new IOException("Request head too large");
+        }
+        return headEnd;
+    }
+
+    // Returns the end of the request head including the terminating blank line, or -1 if incomplete.
+    // Like scanHead, it takes a bare LF as a line end too, so "\n\n" ends a head as "\r\n\r\n" does.
+    private static int headLength(byte[] buf, int off, int end) {
+        for (int i = off + 1; i < end; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            int blankLineStart = buf[i - 1] == '\r' ? i - 1 : i;
+            if (blankLineStart > off && buf[blankLineStart - 1] == '\n') {
+                return i + 1;
             }
+        }
+        return -1;
+    }
 
-            // Parse content
-            StringBuilder contentBuilder = new StringBuilder();
-            if (contentLength > 0) {
-                while (!(line = reader.readLine()).isEmpty()) {
-                    if (line.contains("filename=")) {
-                        parameters.put("filename", line.split("filename=")[1]);
-                    }
-                }
-                while (!(line = reader.readLine()).isEmpty()) {
-                    contentBuilder.append(line).append("\n");
+    // Returns true if buf[from, to) starts with the given ASCII prefix, ignoring case
+    private static boolean regionMatchesIgnoreCase(byte[] buf, int from, int to, String prefix) {
+        if (to - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (toLower(buf[from + i]) != toLower((byte) prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * Records the offsets of the request line parts and of every header name and value.
+     *
+     * @param head The bytes of the request head, including the terminating blank line.
+     * @return The marks array describing the head.
+     * @throws IOException If the request line is malformed.
+     */
+    private static int[] scanHead(byte[] head) throws IOException {
+        int headLength = head.length;
+        int lineEnd = indexOf(head, 0, headLength, (byte) '\n');
+        int requestLineEnd = lineEnd > 0 && head[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+        int methodEnd = indexOf(head, 0, requestLineEnd, (byte) ' ');
+        if (methodEnd <= 0) {
+            throw new IOException("Error parsing request invalid format: no request target");
+        }
+        int targetStart = methodEnd + 1;
+        int targetEnd = indexOf(head, targetStart, requestLineEnd, (byte) ' ');
+        if (targetEnd < 0) {
+            targetEnd = requestLineEnd;
+        }
+        if (targetEnd == targetStart || head[targetStart] != '/') {
+            throw new IOException("Error parsing request invalid format: bad request target");
+        }
+
+        int headerCount = 0;
+        for (int i = lineEnd + 1; i < headLength; i++) {
+            if (head[i] == '\n') {
+                headerCount++;
+            }
+        }
+
+        int[] marks = new int[HEADERS + 4 * headerCount];
+        marks[METHOD_END] = methodEnd;
+        marks[TARGET_START] = targetStart;
+        marks[TARGET_END] = targetEnd;
+        int queryStart = indexOf(head, targetStart, targetEnd, (byte) '?');
+        marks[QUERY_START] = queryStart < 0 ? targetEnd : queryStart;
+        marks[VERSION_START] = Math.min(targetEnd + 1, requestLineEnd);
+        marks[VERSION_END] = requestLineEnd;
+
+        int n = 0;
+        int lineStart = lineEnd + 1;
+        while (lineStart < headLength) {
+            int end = indexOf(head, lineStart, headLength, (byte) '\n');
+            int contentEnd = end > lineStart && head[end - 1] == '\r' ? end - 1 : end;
+            int colon = indexOf(head, lineStart, contentEnd, (byte) ':');
+            if (colon > lineStart) {
+                int valueStart = colon + 1;
+                while (valueStart < contentEnd && (head[valueStart] == ' ' || head[valueStart] == '\t')) {
+                    valueStart++;
                 }
-                while (reader.ready()) {
-                    reader.readLine(); // discard remaining lines
+                int valueEnd = contentEnd;
+                while (valueEnd > valueStart && (head[valueEnd - 1] == ' ' || head[valueEnd - 1] == '\t')) {
+                    valueEnd--;
                 }
+                int base = HEADERS + 4 * n++;
+                marks[base] = lineStart;
+                marks[base + 1] = colon;
+                marks[base + 2] = valueStart;
+                marks[base + 3] = valueEnd;
             }
+            lineStart = end + 1;
+        }
+        return n == headerCount ? marks : Arrays.copyOf(marks, HEADERS + 4 * n);
+    }
 
-            return new RequestInfo(httpCommand, uri, uriSegments, parameters, contentBuilder.toString().getBytes());
-        } catch (Exception e) {
-            throw new IOException("Error parsing request invalid format: " + e.getMessage());
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
         }
+        return -1;
     }
 
     /**
@@ -78,60 +198,348 @@ public class RequestParser {
     }
 
     /**
-     * Parses query parameters from the URI.
-     *
-     * @param uriPart The query string part of the URI.
-     * @return A map of key-value parameter pairs.
-     */
-    private static Map<String, String> parseParameters(String uriPart) {
-        Map<String, String> parameters = new HashMap<>();
-        String[] parameterPairs = uriPart.split("&");
-        for (String pair : parameterPairs) {
-            String[] keyValue = pair.split("=");
-            if (keyValue.length == 2) {
-                parameters.put(keyValue[0], keyValue[1]);
-            }
-        }
-        return parameters;
-    }
-
-    /**
-     * Internal class representing parsed request information.
+     * Internal class representing parsed request information. Requests built by the parser keep
+     * the raw bytes of their head and materialise each field on first access. The body is not
+     * held in memory: it is exposed as a stream bounded by the request framing.
      */
     public static class RequestInfo {
-        private final String httpCommand;
-        private final String uri;
-        private final String[] uriSegments;
-        private final Map<String, String> parameters;
-        private final byte[] content;
+        private final byte[] head;
+        private final int[] marks;
+        private InputStream body = EMPTY_BODY;
+        private String httpCommand;
+        private String uri;
+        private String[] uriSegments;
+        private Map<String, String> parameters;
+        private byte[] content;
+        private String httpVersion;
+        private Map<String, String> headers;
 
         public RequestInfo(String httpCommand, String uri, String[] uriSegments,
                            Map<String, String> parameters, byte[] content) {
+            this(httpCommand, uri, uriSegments, parameters, content, "HTTP/1.1", Collections.emptyMap());
+        }
+
+        public RequestInfo(String httpCommand, String uri, String[] uriSegments,
+                           Map<String, String> parameters, byte[] content,
+                           String httpVersion, Map<String, String> headers) {
+            this.head = null;
+            this.marks = null;
+            this.body = new ByteArrayInputStream(content);
             this.httpCommand = httpCommand;
             this.uri = uri;
             this.uriSegments = uriSegments;
             this.parameters = parameters;
             this.content = content;
+            this.httpVersion = httpVersion;
+            this.headers = headers;
+        }
+
+        private RequestInfo(byte[] head, int[] marks) {
+            this.head = head;
+            this.marks = marks;
         }
 
         public String getHttpCommand() {
+            if (httpCommand == null) {
+                int methodEnd = marks[METHOD_END];
+                for (String method : KNOWN_METHODS) {
+                    if (method.length() == methodEnd && regionMatchesIgnoreCase(head, 0, methodEnd, method)) {
+                        httpCommand = method;
+                        return httpCommand;
+                    }
+                }
+                httpCommand = ascii(0, methodEnd);
+            }
             return httpCommand;
         }
 
         public String getUri() {
+            if (uri == null) {
+                uri = ascii(marks[TARGET_START], marks[TARGET_END]);
+            }
             return uri;
         }
 
         public String[] getUriSegments() {
+            if (uriSegments == null) {
+                uriSegments = parseUriSegments(ascii(marks[TARGET_START], marks[QUERY_START]));
+            }
             return uriSegments;
         }
 
         public Map<String, String> getParameters() {
+            if (parameters == null) {
+                parameters = new HashMap<>();
+                int pairStart = marks[QUERY_START] + 1;
+                int queryEnd = marks[TARGET_END];
+                while (pairStart < queryEnd) {
+                    int pairEnd = indexOf(head, pairStart, queryEnd, (byte) '&');
+                    if (pairEnd < 0) {
+                        pairEnd = queryEnd;
+                    }
+                    int equals = separatorOf(pairStart, pairEnd);
+                    if (equals >= 0) {
+                        parameters.put(ascii(pairStart, equals), ascii(equals + 1, pairEnd));
+                    }
+                    pairStart = pairEnd + 1;
+                }
+            }
             return parameters;
         }
 
+        // Returns the '=' of a "name=value" pair with a non-empty name and value, or -1 for any
+        // other pair, such as "a=" or "a=b=c", which is ignored
+        private int separatorOf(int pairStart, int pairEnd) {
+            int equals = indexOf(head, pairStart, pairEnd, (byte) '=');
+            if (equals > pairStart && equals < pairEnd - 1 && indexOf(head, equals + 1, pairEnd, (byte) '=') < 0) {
+                return equals;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the value of a single query parameter without building the parameter map.
+         * Pairs are read as by {@link #getParameters()}, a repeated name gives its last value.
+         *
+         * @param name The parameter name.
+         * @return The parameter value, or null if the query has no such parameter.
+         */
+        public String getParameter(String name) {
+            if (parameters != null || head == null) {
+                return getParameters().get(name);
+            }
+            String value = null;
+            int pairStart = marks[QUERY_START] + 1;
+            int queryEnd = marks[TARGET_END];
+            while (pairStart < queryEnd) {
+                int pairEnd = indexOf(head, pairStart, queryEnd, (byte) '&');
+                if (pairEnd < 0) {
+                    pairEnd = queryEnd;
+                }
+                int equals = pairStart + name.length();
+                if (equals < pairEnd && head[equals] == '=' && regionEquals(pairStart, equals, name)
+                        && separatorOf(pairStart, pairEnd) == equals) {
+                    value = ascii(equals + 1, pairEnd);
+                }
+                pairStart = pairEnd + 1;
+            }
+            return value;
+        }
+
+        /**
+         * Returns the whole request body, reading it into memory on first call. Servlets that may
+         * receive large bodies should use {@link #getBody()} instead.
+         */
         public byte[] getContent() {
+            if (content == null) {
+                try {
+                    content = body.readAllBytes();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
             return content;
         }
+
+        /**
+         * Returns the request body as a stream. The stream ends with the body, whether it was
+         * framed by Content-Length or by chunked encoding, and it can only be read once.
+         */
+        public InputStream getBody() {
+            return body;
+        }
+
+        /**
+         * Returns the request body as a channel, see {@link #getBody()}.
+         */
+        public ReadableByteChannel getBodyChannel() {
+            return Channels.newChannel(body);
+        }
+
+        /**
+         * Returns the announced length of the body, 0 if the request has none, or -1 if the length
+         * is not known in advance because the body uses chunked encoding.
+         */
+        public long getContentLength() {
+            if (isChunked()) {
+                return -1;
+            }
+            String contentLength = getHeader("Content-Length");
+            if (contentLength == null) {
+                return content != null ? content.length : 0;
+            }
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Tells whether the body is sent with "Transfer-Encoding: chunked".
+         */
+        public boolean isChunked() {
+            return headerContainsToken("Transfer-Encoding", "chunked");
+        }
+
+        /**
+         * Tells whether the client waits for a "100 Continue" before sending the body.
+         */
+        public boolean expectsContinue() {
+            String expect = getHeader("Expect");
+            return expect != null && expect.equalsIgnoreCase("100-continue");
+        }
+
+        void setBody(InputStream body) {
+            this.body = body;
+        }
+
+        public String getHttpVersion() {
+            if (httpVersion == null) {
+                int start = marks[VERSION_START];
+                int end = marks[VERSION_END];
+                if (regionEquals(start, end, "HTTP/1.1")) {
+                    httpVersion = "HTTP/1.1";
+                } else {
+                    httpVersion = end > start ? ascii(start, end) : "HTTP/1.0";
+                }
+            }
+            return httpVersion;
+        }
+
+        public Map<String, String> getHeaders() {
+            if (headers == null) {
+                headers = new HashMap<>();
+                for (int base = HEADERS; base < marks.length; base += 4) {
+                    headers.put(ascii(marks[base], marks[base + 1]), ascii(marks[base + 2], marks[base + 3]));
+                }
+            }
+            return headers;
+        }
+
+        /**
+         * Returns the value of a request header, matching its name case-insensitively.
+         *
+         * @param name The header name.
+         * @return The header value, or null if the request has no such header.
+         */
+        public String getHeader(String name) {
+            if (head == null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    if (header.getKey().equalsIgnoreCase(name)) {
+                        return header.getValue();
+                    }
+                }
+                return null;
+            }
+            int base = findHeader(name, HEADERS);
+            return base < 0 ? null : ascii(marks[base + 2], marks[base + 3]);
+        }
+
+        /**
+         * Tells whether a comma separated header such as Connection or Accept-Encoding lists
+         * a token, comparing case-insensitively. No strings are created for the comparison.
+         *
+         * @param name  The header name.
+         * @param token The token to look for.
+         * @return true if one of the headers with this name lists the token.
+         */
+        public boolean headerContainsToken(String name, String token) {
+            if (head == null) {
+                String value = getHeader(name);
+                if (value == null) {
+                    return false;
+                }
+                for (String part : value.split(",")) {
+                    String t = part.trim();
+                    int params = t.indexOf(';');
+                    if ((params < 0 ? t : t.substring(0, params).trim()).equalsIgnoreCase(token)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            for (int base = findHeader(name, HEADERS); base >= 0; base = findHeader(name, base + 4)) {
+                int i = marks[base + 2];
+                int valueEnd = marks[base + 3];
+                while (i < valueEnd) {
+                    while (i < valueEnd && (head[i] == ' ' || head[i] == ',')) {
+                        i++;
+                    }
+                    int tokenEnd = i;
+                    while (tokenEnd < valueEnd && head[tokenEnd] != ',' && head[tokenEnd] != ';' && head[tokenEnd] != ' ') {
+                        tokenEnd++;
+                    }
+                    if (tokenEnd - i == token.length() && regionMatchesIgnoreCase(head, i, tokenEnd, token)) {
+                        return true;
+                    }
+                    i = tokenEnd;
+                    while (i < valueEnd && head[i] != ',') {
+                        i++;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Tells whether the client asked to keep the connection open after this request.
+         * HTTP/1.1 connections are persistent unless the client sends "Connection: close",
+         * while HTTP/1.0 clients have to ask for it with "Connection: keep-alive".
+         *
+         * @return true if the connection may be reused for further requests.
+         */
+        public boolean isKeepAlive() {
+            if ("HTTP/1.1".equals(getHttpVersion())) {
+                return !headerContainsToken("Connection", "close");
+            }
+            return headerContainsToken("Connection", "keep-alive");
+        }
+
+        // Raw head bytes used to route the request without creating strings, null for
+        // requests built from already parsed fields
+        byte[] rawHead() {
+            return head;
+        }
+
+        int methodEnd() {
+            return marks[METHOD_END];
+        }
+
+        int pathStart() {
+            return marks[TARGET_START];
+        }
+
+        int pathEnd() {
+            return marks[QUERY_START];
+        }
+
+        // Returns the marks index of the first header named name at or after from, or -1
+        private int findHeader(String name, int from) {
+            for (int base = from; base < marks.length; base += 4) {
+                int nameStart = marks[base];
+                int nameEnd = marks[base + 1];
+                if (nameEnd - nameStart == name.length() && regionMatchesIgnoreCase(head, nameStart, nameEnd, name)) {
+                    return base;
+                }
+            }
+            return -1;
+        }
+
+        private boolean regionEquals(int from, int to, String s) {
+            if (to - from != s.length()) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (head[from + i] != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String ascii(int from, int to) {
+            return new String(head, from, to - from, StandardCharsets.ISO_8859_1);
+        }
     }
 }
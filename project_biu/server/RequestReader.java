@@ -0,0 +1,234 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The RequestReader class reads consecutive requests from the stream of one connection into a
+ * single reusable buffer. Bytes that arrive after the current request, such as pipelined
+ * requests, stay in the buffer for the next call.
+ *
+ * <p>Only the request head is read eagerly. The body is handed to the servlet as a stream that
+ * reads straight from the connection and ends where the Content-Length or the chunked encoding
+ * says the body ends. Whatever the servlet leaves unread is skipped before the next request.</p>
+ */
+final class RequestReader {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private int start;
+    private int end;
+    private Body currentBody;
+
+    RequestReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the head of the next request from the connection, skipping the unread rest of the
+     * previous request body first.
+     *
+     * @return the parsed request, or null if the stream ended before a new request started
+     * @throws IOException if an I/O error occurs, the request is malformed or the stream ends
+     *                     in the middle of a request
+     */
+    RequestParser.RequestInfo next() throws IOException {
+        if (currentBody != null) {
+            currentBody.skipRest();
+            currentBody = null;
+        }
+
+        int headEnd;
+        while ((headEnd = RequestParser.headEnd(buf, start, end)) < 0) {
+            if (!fill()) {
+                if (end == start) {
+                    return null;
+                }
+                throw new IOException("Connection closed in the middle of a request");
+            }
+        }
+        RequestParser.RequestInfo requestInfo = RequestParser.parseHead(buf, start, headEnd);
+        start = headEnd;
+
+        if (requestInfo.isChunked()) {
+            currentBody = new ChunkedBody();
+        } else {
+            long contentLength = requestInfo.getContentLength();
+            if (contentLength < 0) {
+                throw new IOException("Invalid Content-Length");
+            }
+            currentBody = new FixedLengthBody(contentLength);
+        }
+        requestInfo.setBody(currentBody);
+        return requestInfo;
+    }
+
+    /**
+     * Tells whether bytes of a further request were already received.
+     */
+    boolean hasBufferedInput() throws IOException {
+        return end > start || in.available() > 0;
+    }
+
+    /**
+     * Returns the rest of the connection input, starting with the bytes already buffered.
+     * Used once the connection stops speaking HTTP, after a protocol upgrade.
+     */
+    InputStream remainingInput() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return end > start ? buf[start++] & 0xFF : in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (end > start) {
+                    int n = Math.min(len, end - start);
+                    System.arraycopy(buf, start, b, off, n);
+                    start += n;
+                    return n;
+                }
+                return in.read(b, off, len);
+            }
+        };
+    }
+
+    // Reads more bytes into the buffer, compacting or growing it first if it is full
+    private boolean fill() throws IOException {
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        if (end == buf.length) {
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            } else {
+                byte[] grown = new byte[Math.min(buf.length * 2, RequestParser.MAX_HEAD_SIZE + BUFFER_SIZE)];
+                System.arraycopy(buf, 0, grown, 0, end);
+                buf = grown;
+            }
+        }
+        int read = in.read(buf, end, buf.length - end);
+        if (read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    /**
+     * The body of the current request as handed to the servlet.
+     */
+    private abstract static class Body extends InputStream {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        /**
+         * Discards what the servlet left unread, through the reader's buffer.
+         */
+        abstract void skipRest() throws IOException;
+    }
+
+    /**
+     * Body framed by a Content-Length header.
+     */
+    private final class FixedLengthBody extends Body {
+        private long remaining;
+
+        FixedLengthBody(long contentLength) {
+            this.remaining = contentLength;
+        }
+
+        @Override
+        void skipRest() throws IOException {
+            while (remaining > 0) {
+                if (end == start && !fill()) {
+                    throw new IOException("Connection closed in the middle of a request body");
+                }
+                int n = (int) Math.min(remaining, end - start);
+                start += n;
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int max = (int) Math.min(len, remaining);
+            int n;
+            if (end > start) {
+                n = Math.min(max, end - start);
+                System.arraycopy(buf, start, b, off, n);
+                start += n;
+            } else {
+                // Large reads go straight from the socket into the caller's array
+                n = in.read(b, off, max);
+                if (n < 0) {
+                    throw new IOException("Connection closed in the middle of a request body");
+                }
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, end - start);
+        }
+    }
+
+    /**
+     * Body sent with chunked transfer encoding.
+     */
+    private final class ChunkedBody extends Body {
+        private final ChunkedDecoder decoder = new ChunkedDecoder();
+
+        @Override
+        void skipRest() throws IOException {
+            while (!decoder.isDone()) {
+                if (end == start && !fill()) {
+                    throw new IOException("Connection closed in the middle of a chunked body");
+                }
+                ByteBuffer src = ByteBuffer.wrap(buf, start, end - start);
+                decoder.skip(src);
+                start = src.position();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!decoder.isDone()) {
+                if (end == start && !fill()) {
+                    throw new IOException("Connection closed in the middle of a chunked body");
+                }
+                ByteBuffer src = ByteBuffer.wrap(buf, start, end - start);
+                ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+                decoder.decode(src, dst);
+                start = src.position();
+                int n = dst.position() - off;
+                if (n > 0) {
+                    return n;
+                }
+            }
+            return -1;
+        }
+    }
+}
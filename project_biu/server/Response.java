@@ -0,0 +1,533 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The Response class is what a servlet writes its answer to. It owns the framing of the
+ * response on the connection, so servlets only set a status, headers and write the body.
+ *
+ * <p>The body is buffered. A body that fits in the buffer is sent in one piece with a
+ * Content-Length header. A larger body, or one the servlet flushes early, is streamed with
+ * chunked transfer encoding (or, for HTTP/1.0 clients, delimited by closing the connection).
+ * Textual bodies of at least {@link #GZIP_MIN_SIZE} bytes are gzip compressed when the client
+ * accepts it.</p>
+ *
+ * <p>Headers can be changed until the response is committed, that is until the first bytes
+ * have been written to the connection.</p>
+ */
+public class Response {
+
+    static final int BUFFER_SIZE = 16 * 1024;
+    static final int GZIP_MIN_SIZE = 1024;
+    private static final int MIN_BUFFER_SIZE = 512;
+    private static final byte[] NO_BYTES = {};
+
+    /**
+     * Interim response telling a client that sent "Expect: 100-continue" to go on with the body.
+     */
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final RequestParser.RequestInfo request;
+    private final OutputStream transport;
+    private final boolean headRequest;
+    private final boolean chunkedAllowed;
+    private final boolean acceptsGzip;
+    private boolean keepAlive;
+
+    private int status = 200;
+    private String reason = "OK";
+    private String contentType;
+    private long contentLength = -1;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    private byte[] buffer = NO_BYTES; // Grows with the body up to BUFFER_SIZE, empty bodies cost nothing
+    private int count;
+    private final OutputStream outputStream = new BodyOutputStream();
+    private OutputStream body; // Where buffered bytes go once the response is committed
+    private GZIPOutputStream gzip;
+    private boolean chunked;
+    private boolean committed;
+    private boolean finished;
+    private WebSocketEndpoint upgrade;
+
+    /**
+     * Creates the response to a request.
+     *
+     * @param request   the request being answered
+     * @param transport the stream to the client
+     * @param keepAlive whether the connection may stay open after this response
+     */
+    Response(RequestParser.RequestInfo request, OutputStream transport, boolean keepAlive) {
+        this.request = request;
+        this.transport = transport;
+        this.keepAlive = keepAlive;
+        this.headRequest = "HEAD".equals(request.getHttpCommand());
+        this.chunkedAllowed = "HTTP/1.1".equals(request.getHttpVersion());
+        this.acceptsGzip = request.headerContainsToken("Accept-Encoding", "gzip");
+    }
+
+    /**
+     * Sets the status code, with its standard reason phrase.
+     *
+     * @param status the status code
+     */
+    public void setStatus(int status) {
+        setStatus(status, reasonPhrase(status));
+    }
+
+    /**
+     * Sets the status code and reason phrase.
+     *
+     * @param status the status code
+     * @param reason the reason phrase
+     */
+    public void setStatus(int status, String reason) {
+        checkNotCommitted();
+        this.status = status;
+        this.reason = reason;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setContentType(String contentType) {
+        checkNotCommitted();
+        this.contentType = contentType;
+    }
+
+    /**
+     * Announces the exact length of the body, which is then streamed as is instead of being
+     * buffered, chunked or compressed.
+     *
+     * @param contentLength the number of body bytes the servlet will write
+     */
+    public void setContentLength(long contentLength) {
+        checkNotCommitted();
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Sets a response header. The framing headers (Content-Length, Transfer-Encoding,
+     * Content-Encoding and Connection) are managed by the response itself.
+     *
+     * @param name  the header name
+     * @param value the header value, or null to remove the header
+     */
+    public void setHeader(String name, String value) {
+        checkNotCommitted();
+        headers.keySet().removeIf(name::equalsIgnoreCase);
+        if (value != null) {
+            headers.put(name, value);
+        }
+    }
+
+    /**
+     * Returns the stream the body is written to. Closing it finishes the body.
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Appends text to the body, encoded as UTF-8.
+     *
+     * @param text the text to write
+     * @throws IOException if writing to the client fails
+     */
+    public void write(String text) throws IOException {
+        write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Appends bytes to the body.
+     *
+     * @param bytes the bytes to write
+     * @throws IOException if writing to the client fails
+     */
+    public void write(byte[] bytes) throws IOException {
+        outputStream.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Sends a region of a file as the complete body and finishes the response. Nothing may have
+     * been written to the body before. The bytes are not compressed and, when the connection
+     * supports it, go from the file to the socket with {@link FileChannel#transferTo} without
+     * being copied through the heap.
+     *
+     * @param file     the file to send, still owned by the caller once this returns
+     * @param position the offset of the region in the file
+     * @param length   the length of the region
+     * @throws IOException if reading the file or writing to the client fails
+     */
+    public void sendFile(FileChannel file, long position, long length) throws IOException {
+        if (count > 0) {
+            throw new IllegalStateException("Body already written");
+        }
+        setContentLength(length);
+        commit(false);
+        if (body == transport) {
+            if (transport instanceof FileTransport fileTransport) {
+                fileTransport.transferFile(file, position, length);
+            } else {
+                transport.flush();
+                WritableByteChannel target = Channels.newChannel(transport);
+                long sent = 0;
+                while (sent < length) {
+                    long n = file.transferTo(position + sent, length - sent, target);
+                    if (n <= 0) {
+                        throw new EOFException("File shorter than its announced length");
+                    }
+                    sent += n;
+                }
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Sends what has been written so far to the client without waiting for the end of the
+     * body. This commits the response, which then uses chunked transfer encoding unless
+     * a content length was set.
+     *
+     * @throws IOException if writing to the client fails
+     */
+    public void flush() throws IOException {
+        if (!committed) {
+            commit(false);
+        }
+        drainBuffer();
+        if (gzip != null) {
+            gzip.flush();
+        }
+        transport.flush();
+    }
+
+    /**
+     * Switches the connection to the WebSocket protocol. If the request is a valid WebSocket
+     * handshake, the 101 response is sent right away and, once the servlet returns, the server
+     * runs a {@link WebSocketSession} delivering the messages to the endpoint. Otherwise a
+     * 400 response is prepared and nothing else happens.
+     *
+     * @param endpoint the endpoint receiving the messages of the connection
+     * @return true if the connection is upgraded
+     * @throws IOException if writing to the client fails
+     */
+    public boolean upgrade(WebSocketEndpoint endpoint) throws IOException {
+        checkNotCommitted();
+        String key = request.getHeader("Sec-WebSocket-Key");
+        if (!"GET".equals(request.getHttpCommand()) || key == null
+                || !request.headerContainsToken("Upgrade", "websocket")
+                || !request.headerContainsToken("Connection", "upgrade")
+                || !"13".equals(request.getHeader("Sec-WebSocket-Version"))) {
+            setStatus(400);
+            setContentType("text/plain");
+            setHeader("Sec-WebSocket-Version", "13");
+            write("WebSocket handshake expected");
+            return false;
+        }
+        count = 0;
+        setStatus(101);
+        setHeader("Upgrade", "websocket");
+        setHeader("Sec-WebSocket-Accept", WebSocketSession.acceptKey(key));
+        upgrade = endpoint;
+        keepAlive = false;
+        finish();
+        transport.flush();
+        return true;
+    }
+
+    /**
+     * Returns the endpoint the connection was upgraded to, or null.
+     */
+    WebSocketEndpoint getUpgrade() {
+        return upgrade;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * Tells whether the connection can stay open once this response is finished.
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Ends the response: sends the buffered body with its length, or terminates a streamed
+     * body. Called by the server once the servlet returns; further calls do nothing.
+     *
+     * @throws IOException if writing to the client fails
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (!committed) {
+            commit(true);
+            return;
+        }
+        drainBuffer();
+        if (gzip != null) {
+            gzip.finish();
+        }
+        if (chunked) {
+            transport.write(LAST_CHUNK);
+        }
+    }
+
+    /**
+     * Ends the response after the servlet failed. If nothing was sent yet the buffered output
+     * is replaced by a 500 response, otherwise the client will notice the truncated body when
+     * the connection is closed.
+     *
+     * @throws IOException if writing to the client fails
+     */
+    void fail() throws IOException {
+        keepAlive = false;
+        if (finished || committed) {
+            finished = true;
+            return;
+        }
+        count = 0;
+        headers.clear();
+        contentLength = -1;
+        setStatus(500);
+        setContentType("text/plain");
+        write("500 Internal Server Error");
+        finish();
+    }
+
+    private void checkNotCommitted() {
+        if (committed) {
+            throw new IllegalStateException("Response already committed");
+        }
+    }
+
+    // Picks the framing of the body, then writes the head and, for a complete body, the body
+    private void commit(boolean complete) throws IOException {
+        committed = true;
+        boolean noBody = status == 204 || status == 304 || status < 200;
+        boolean compress = !noBody && !headRequest && contentLength < 0 && acceptsGzip && isCompressible()
+                && (!complete || count >= GZIP_MIN_SIZE);
+
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (!noBody && contentLength < 0 && isCompressible()) {
+            head.append("Vary: Accept-Encoding\r\n");
+        }
+
+        byte[] completeBody = null;
+        if (complete) {
+            completeBody = compress ? gzip(buffer, count) : null;
+            long length = contentLength >= 0 ? contentLength : completeBody != null ? completeBody.length : count;
+            if (compress) {
+                head.append("Content-Encoding: gzip\r\n");
+            }
+            if (!noBody) {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            }
+        } else if (noBody) {
+            // Nothing to frame
+        } else if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        } else {
+            if (compress) {
+                head.append("Content-Encoding: gzip\r\n");
+            }
+            if (chunkedAllowed) {
+                chunked = true;
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                keepAlive = false; // The end of the body is marked by closing the connection
+            }
+        }
+        if (upgrade != null) {
+            head.append("Connection: Upgrade\r\n");
+        } else {
+            head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+        }
+        head.append("\r\n");
+        transport.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        if (noBody || headRequest) {
+            body = OutputStream.nullOutputStream();
+        } else if (complete) {
+            if (completeBody != null) {
+                transport.write(completeBody);
+            } else {
+                transport.write(buffer, 0, count);
+            }
+            count = 0;
+            body = transport;
+        } else {
+            body = chunked ? new ChunkedOutputStream() : transport;
+            if (compress) {
+                gzip = new GZIPOutputStream(body, BUFFER_SIZE, true);
+                body = gzip;
+            }
+        }
+    }
+
+    private void drainBuffer() throws IOException {
+        if (count > 0) {
+            body.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private boolean isCompressible() {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.startsWith("application/json")
+                || type.startsWith("application/javascript") || type.startsWith("image/svg+xml");
+    }
+
+    private static byte[] gzip(byte[] bytes, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(bytes, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String reasonPhrase(int status) {
+        switch (status) {
+            case 101: return "Switching Protocols";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status " + status;
+        }
+    }
+
+    /**
+     * A transport able to send file regions itself, typically straight to its socket.
+     */
+    interface FileTransport {
+        /**
+         * Writes a region of a file after everything written to the transport so far, and
+         * returns once the region no longer needs the file.
+         *
+         * @param file     the file to send
+         * @param position the offset of the region in the file
+         * @param length   the length of the region
+         * @throws IOException if reading the file or writing to the client fails
+         */
+        void transferFile(FileChannel file, long position, long length) throws IOException;
+    }
+
+    /**
+     * The stream handed to servlets, collecting body bytes in the response buffer.
+     */
+    private final class BodyOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            if (finished) {
+                throw new IOException("Response already finished");
+            }
+            if (count == BUFFER_SIZE) {
+                overflow();
+            }
+            ensureCapacity(count + 1);
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Response already finished");
+            }
+            if (len > BUFFER_SIZE - count) {
+                overflow();
+                if (len >= BUFFER_SIZE) {
+                    body.write(b, off, len); // Too large to be worth copying into the buffer
+                    return;
+                }
+            }
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            Response.this.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        private void ensureCapacity(int n) {
+            if (n > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(BUFFER_SIZE, Math.max(n, Math.max(MIN_BUFFER_SIZE, buffer.length * 2))));
+            }
+        }
+
+        private void overflow() throws IOException {
+            if (!committed) {
+                commit(false);
+            }
+            drainBuffer();
+        }
+    }
+
+    /**
+     * Frames everything written to it as chunks of a chunked body.
+     */
+    private final class ChunkedOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            transport.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+            transport.write(CRLF);
+            transport.write(b, off, len);
+            transport.write(CRLF);
+        }
+    }
+}
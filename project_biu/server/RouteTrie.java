@@ -0,0 +1,183 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The RouteTrie class is an immutable routing table compiled from the registered routes.
+ *
+ * <p>Each HTTP method owns a trie with one node per URI segment. A request is resolved by
+ * walking its raw method and path bytes once, remembering the deepest node that carries a
+ * route, so the longest registered prefix wins. Children are kept in open-addressing tables
+ * keyed by the segment bytes, so the lookup neither creates strings nor allocates at all.</p>
+ *
+ * <p>A servlet registered on "/" matches every path of its method that no longer prefix
+ * matches. Empty segments are ignored, so "/app/" and "/app//x" route like "/app" and "/app/x".</p>
+ */
+final class RouteTrie {
+
+    static final RouteTrie EMPTY = compile(Map.of());
+
+    private final byte[][] methods;
+    private final Node[] roots;
+
+    private RouteTrie(byte[][] methods, Node[] roots) {
+        this.methods = methods;
+        this.roots = roots;
+    }
+
+    /**
+     * Compiles a routing table.
+     *
+     * @param routes the routes by upper-case HTTP method and URI
+     * @return the compiled table
+     */
+    static RouteTrie compile(Map<String, Map<String, ServletTable.Route>> routes) {
+        byte[][] methods = new byte[routes.size()][];
+        Node[] roots = new Node[routes.size()];
+        int i = 0;
+        for (Map.Entry<String, Map<String, ServletTable.Route>> method : routes.entrySet()) {
+            Builder root = new Builder();
+            for (Map.Entry<String, ServletTable.Route> route : method.getValue().entrySet()) {
+                Builder node = root;
+                for (String segment : route.getKey().split("/")) {
+                    if (!segment.isEmpty()) {
+                        node = node.children.computeIfAbsent(segment, k -> new Builder());
+                    }
+                }
+                node.route = route.getValue();
+            }
+            methods[i] = method.getKey().getBytes(StandardCharsets.ISO_8859_1);
+            roots[i] = root.build();
+            i++;
+        }
+        return new RouteTrie(methods, roots);
+    }
+
+    /**
+     * Finds the route registered for the longest prefix of a path.
+     *
+     * @param buf       the buffer holding the request method and path
+     * @param methodEnd the end of the method, which starts at offset 0
+     * @param pathStart the start of the path
+     * @param pathEnd   the end of the path, excluding any query string
+     * @return the matching route, or null if there is none
+     */
+    ServletTable.Route find(byte[] buf, int methodEnd, int pathStart, int pathEnd) {
+        Node node = root(buf, methodEnd);
+        if (node == null) {
+            return null;
+        }
+        ServletTable.Route match = node.route;
+        int i = pathStart;
+        while (i < pathEnd) {
+            while (i < pathEnd && buf[i] == '/') {
+                i++;
+            }
+            int segmentEnd = i;
+            while (segmentEnd < pathEnd && buf[segmentEnd] != '/') {
+                segmentEnd++;
+            }
+            if (segmentEnd == i) {
+                break;
+            }
+            node = node.child(buf, i, segmentEnd);
+            if (node == null) {
+                break;
+            }
+            if (node.route != null) {
+                match = node.route;
+            }
+            i = segmentEnd;
+        }
+        return match;
+    }
+
+    // Methods are compared case-insensitively, as the servers always did
+    private Node root(byte[] buf, int methodEnd) {
+        outer:
+        for (int m = 0; m < methods.length; m++) {
+            byte[] method = methods[m];
+            if (method.length != methodEnd) {
+                continue;
+            }
+            for (int i = 0; i < methodEnd; i++) {
+                byte b = buf[i];
+                if (b >= 'a' && b <= 'z') {
+                    b -= 'a' - 'A';
+                }
+                if (b != method[i]) {
+                    continue outer;
+                }
+            }
+            return roots[m];
+        }
+        return null;
+    }
+
+    private static int hash(byte[] buf, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + buf[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A compiled trie node.
+     */
+    private static final class Node {
+        private final ServletTable.Route route;
+        private final byte[][] keys;
+        private final Node[] children;
+        private final int mask;
+
+        Node(ServletTable.Route route, byte[][] keys, Node[] children) {
+            this.route = route;
+            this.keys = keys;
+            this.children = children;
+            this.mask = keys.length - 1;
+        }
+
+        Node child(byte[] buf, int from, int to) {
+            if (keys.length == 0) {
+                return null;
+            }
+            int length = to - from;
+            for (int slot = hash(buf, from, to) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                byte[] key = keys[slot];
+                if (key.length == length && Arrays.equals(key, 0, length, buf, from, to)) {
+                    return children[slot];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Mutable node used while compiling.
+     */
+    private static final class Builder {
+        private final Map<String, Builder> children = new LinkedHashMap<>();
+        private ServletTable.Route route;
+
+        Node build() {
+            // Keep the tables at most half full so probe sequences stay short
+            int size = children.isEmpty() ? 0 : Integer.highestOneBit(children.size() * 2 - 1) << 1;
+            byte[][] keys = new byte[size][];
+            Node[] nodes = new Node[size];
+            for (Map.Entry<String, Builder> child : children.entrySet()) {
+                byte[] key = child.getKey().getBytes(StandardCharsets.ISO_8859_1);
+                int slot = hash(key, 0, key.length) & (size - 1);
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & (size - 1);
+                }
+                keys[slot] = key;
+                nodes[slot] = child.getValue().build();
+            }
+            return new Node(route, keys, nodes);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package server;
+
+import logging.Log;
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+import servlets.AsyncServlet;
+import servlets.Servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The ServletTable class holds the servlets registered on an HTTP server and
+ * resolves the servlet responsible for a request. It is shared by the
+ * different {@link HTTPServer} implementations so that they route requests
+ * the same way. Lookups go through a {@link RouteTrie} that is recompiled
+ * whenever a servlet is added or removed.
+ *
+ * <p>Every registration names the {@link ExecutorLane} its requests run on, so that slow
+ * routes cannot take the threads of the latency-sensitive ones.</p>
+ */
+class ServletTable {
+    private static final Log LOG = Log.get(ServletTable.class);
+
+    /**
+     * The lane requests run on unless their route names another one.
+     */
+    static final String DEFAULT_LANE = "default";
+
+    // Registrations by upper-case HTTP method and URI, guarded by this table
+    private final Map<String, Map<String, Route>> registrations = new LinkedHashMap<>();
+    // Compiled from the registrations on every change, read without locking
+    private volatile RouteTrie routes = RouteTrie.EMPTY;
+
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    // Requests no servlet matched, counted under a route of their own
+    private final Route unmatched = new Route(null, DEFAULT_LANE, "", "unmatched");
+
+    /**
+     * Registers a servlet for a specific HTTP command and URI.
+     *
+     * @param httpCommand the HTTP command (e.g., "GET", "POST", "PUT"), matched case-insensitively
+     * @param uri         the URI path the servlet will handle
+     * @param s           the servlet instance to handle the request
+     * @param lane        the name of the lane the servlet runs on
+     */
+    synchronized void add(String httpCommand, String uri, Servlet s, String lane) {
+        String command = normalizeCommand(httpCommand);
+        Route route = new Route(s, lane == null ? DEFAULT_LANE : lane, command, uri);
+        registrations.computeIfAbsent(command, k -> new LinkedHashMap<>()).put(uri, route);
+        routes = RouteTrie.compile(registrations);
+    }
+
+    /**
+     * Removes the servlet registered for a specific HTTP command and URI.
+     *
+     * @param httpCommand the HTTP command (e.g., "GET", "POST", "PUT")
+     * @param uri         the URI path the servlet was handling
+     */
+    synchronized void remove(String httpCommand, String uri) {
+        String command = normalizeCommand(httpCommand);
+        Map<String, Route> byUri = registrations.get(command);
+        if (byUri != null && byUri.remove(uri) != null) {
+            if (byUri.isEmpty()) {
+                registrations.remove(command);
+            }
+            routes = RouteTrie.compile(registrations);
+        }
+    }
+
+    /**
+     * Retrieves the route for the given request information.
+     * The servlet registered for the longest prefix of the request path wins.
+     *
+     * @param ri the request information
+     * @return the route to handle the request, or null if no matching servlet is found
+     */
+    Route find(RequestParser.RequestInfo ri) {
+        byte[] head = ri.rawHead();
+        if (head != null) {
+            return routes.find(head, ri.methodEnd(), ri.pathStart(), ri.pathEnd());
+        }
+        // Request built from parsed fields, route a synthetic request line instead
+        String httpCommand = ri.getHttpCommand();
+        byte[] line = (httpCommand + " /" + String.join("/", ri.getUriSegments())).getBytes(StandardCharsets.ISO_8859_1);
+        return routes.find(line, httpCommand.length(), httpCommand.length() + 1, line.length);
+    }
+
+    /**
+     * Runs the servlet matching the request, or answers with 404 Not Found if there is none.
+     * Synchronous servlets have written their whole response when this returns; asynchronous
+     * servlets may still be working on it.
+     *
+     * @param ri       the request information
+     * @param response the response the servlet writes to
+     * @return completes once the servlet is done with the response
+     * @throws IOException if the servlet fails to write its response
+     */
+    CompletableFuture<Void> serve(RequestParser.RequestInfo ri, Response response) throws IOException {
+        return serve(find(ri), ri, response);
+    }
+
+    /**
+     * Runs the servlet of a route already looked up with {@link #find}, on the calling thread.
+     *
+     * @param route    the route of the request, or null to answer with 404 Not Found
+     * @param ri       the request information
+     * @param response the response the servlet writes to
+     * @return completes once the servlet is done with the response
+     * @throws IOException if the servlet fails to write its response
+     */
+    CompletableFuture<Void> serve(Route route, RequestParser.RequestInfo ri, Response response) throws IOException {
+        Servlet servlet = route == null ? null : route.servlet;
+
+        if (servlet instanceof AsyncServlet asyncServlet) {
+            return asyncServlet.handleAsync(ri, response).toCompletableFuture();
+        } else if (servlet != null) {
+            servlet.handle(ri, response);
+        } else {
+            // Return 404 Not Found if no servlet matches the request
+            response.setStatus(404);
+            response.setContentType("text/plain");
+            response.write("404 Not Found");
+        }
+        return COMPLETED;
+    }
+
+    /**
+     * Records a served request in the metrics of its route.
+     *
+     * @param route      the route of the request, null if none matched
+     * @param status     the status the request was answered with
+     * @param startNanos the {@link System#nanoTime()} reading taken when the request arrived
+     */
+    void recordRequest(Route route, int status, long startNanos) {
+        Route recorded = route != null ? route : unmatched;
+        recorded.latency.recordSince(startNanos);
+        recorded.requests.increment();
+        if (status >= 500) {
+            recorded.errors.increment();
+        }
+    }
+
+    /**
+     * Returns the exception a servlet failed with, unwrapping the CompletionException added by
+     * dependent stages.
+     */
+    static Throwable causeOf(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    /**
+     * Closes all registered servlets.
+     */
+    synchronized void closeAll() {
+        registrations.values().forEach(byUri -> byUri.values().forEach(route -> closeQuietly(route.servlet)));
+    }
+
+    private static void closeQuietly(Servlet servlet) {
+        try { servlet.close(); } catch (IOException e) { LOG.warn("Failed to close a servlet", e); }
+    }
+
+    private static String normalizeCommand(String httpCommand) {
+        if (httpCommand == null || httpCommand.isEmpty()) {
+            throw new IllegalArgumentException("Invalid HTTP command: " + httpCommand);
+        }
+        return httpCommand.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * A registered servlet with the lane it runs on and the metrics of its requests.
+     */
+    static final class Route {
+        final Servlet servlet;
+        final String lane;
+        private final Counter requests;
+        private final Counter errors;
+        private final Histogram latency;
+
+        Route(Servlet servlet, String lane, String method, String uri) {
+            this.servlet = servlet;
+            this.lane = lane;
+            MetricsRegistry metrics = MetricsRegistry.get();
+            this.requests = metrics.counter("http_requests_total", "Requests served.", "method", method, "route", uri);
+            this.errors = metrics.counter("http_request_errors_total", "Requests answered with a 5xx status.", "method", method, "route", uri);
+            this.latency = metrics.histogram("http_request_duration_seconds", "Time from receiving a request to completing its response.",
+                    1e-9, "method", method, "route", uri);
+        }
+    }
+}
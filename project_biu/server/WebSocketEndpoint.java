@@ -0,0 +1,49 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * The WebSocketEndpoint interface receives the events of a WebSocket connection. A servlet
+ * accepts a connection by passing an endpoint to {@link Response#upgrade(WebSocketEndpoint)}.
+ *
+ * <p>All methods are called on the thread reading the connection, one at a time.</p>
+ */
+public interface WebSocketEndpoint {
+
+    /**
+     * Called once the handshake is complete, before any message is received.
+     *
+     * @param session the connection
+     * @throws IOException if sending to the client fails
+     */
+    default void onOpen(WebSocketSession session) throws IOException {
+    }
+
+    /**
+     * Called for each complete text message.
+     *
+     * @param session the connection
+     * @param text    the message
+     * @throws IOException if sending to the client fails
+     */
+    void onText(WebSocketSession session, String text) throws IOException;
+
+    /**
+     * Called for each complete binary message. Endpoints that only speak text reject them.
+     *
+     * @param session the connection
+     * @param data    the message
+     * @throws IOException if sending to the client fails
+     */
+    default void onBinary(WebSocketSession session, byte[] data) throws IOException {
+        session.close(WebSocketSession.UNSUPPORTED_DATA, "Binary messages not supported");
+    }
+
+    /**
+     * Called once when the connection is closed, whoever closed it.
+     *
+     * @param session the connection
+     */
+    default void onClose(WebSocketSession session) {
+    }
+}
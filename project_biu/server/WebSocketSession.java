@@ -0,0 +1,309 @@
+package server;
+
+import logging.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The WebSocketSession class is one WebSocket connection (RFC 6455) after the HTTP upgrade.
+ *
+ * <p>The server hands the session a virtual thread of its own with {@link #start()}: it reads
+ * frames, answers pings and hands complete messages to the {@link WebSocketEndpoint}. Messages
+ * can be sent from any thread; each frame is written in one piece.</p>
+ */
+public class WebSocketSession {
+    private static final Log LOG = Log.get(WebSocketSession.class);
+
+    public static final int NORMAL_CLOSURE = 1000;
+    public static final int GOING_AWAY = 1001;
+    public static final int PROTOCOL_ERROR = 1002;
+    public static final int UNSUPPORTED_DATA = 1003;
+    public static final int MESSAGE_TOO_BIG = 1009;
+    public static final int INTERNAL_ERROR = 1011;
+
+    static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    // Sessions last as long as their connection, they get threads of their own instead of a worker
+    private static final ThreadFactory THREADS = Thread.ofVirtual().name("WebSocket-", 0).factory();
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final WebSocketEndpoint endpoint;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Closeable connection;
+    private final Object writeLock = new Object();
+    private volatile boolean open = true;
+    private boolean closeSent;
+
+    /**
+     * Creates a session over an upgraded connection.
+     *
+     * @param endpoint   the endpoint receiving the messages
+     * @param in         the stream from the client, starting with the first frame
+     * @param out        the stream to the client
+     * @param connection closed when the session ends
+     */
+    WebSocketSession(WebSocketEndpoint endpoint, InputStream in, OutputStream out, Closeable connection) {
+        this.endpoint = endpoint;
+        this.in = in;
+        this.out = out;
+        this.connection = connection;
+    }
+
+    /**
+     * Computes the Sec-WebSocket-Accept value answering a handshake key.
+     *
+     * @param key the Sec-WebSocket-Key sent by the client
+     * @return the accept value
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    /**
+     * Runs the session on a virtual thread of its own, so a long-lived connection does not hold
+     * one of the server's workers.
+     */
+    void start() {
+        THREADS.newThread(this::run).start();
+    }
+
+    /**
+     * Reads messages until the connection is closed, then releases it.
+     */
+    void run() {
+        try {
+            endpoint.onOpen(this);
+            readMessages();
+        } catch (EOFException e) {
+            // Client went away without a close frame
+        } catch (IOException e) {
+            if (open) {
+                LOG.warn("WebSocket error: {}", e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            LOG.error("WebSocket endpoint failed", e);
+            closeQuietly(INTERNAL_ERROR, "Internal error");
+        } finally {
+            open = false;
+            try {
+                endpoint.onClose(this);
+            } finally {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to close a WebSocket connection", e);
+                }
+            }
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Sends a text message.
+     *
+     * @param text the message
+     * @throws IOException if the connection is closed or writing fails
+     */
+    public void sendText(String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        sendFrame(OPCODE_TEXT, payload, 0, payload.length);
+    }
+
+    /**
+     * Sends a binary message.
+     *
+     * @param data   the buffer holding the message
+     * @param off    the start of the message
+     * @param length the length of the message
+     * @throws IOException if the connection is closed or writing fails
+     */
+    public void sendBinary(byte[] data, int off, int length) throws IOException {
+        sendFrame(OPCODE_BINARY, data, off, length);
+    }
+
+    /**
+     * Starts the closing handshake. The session ends once the client answers or disconnects.
+     *
+     * @param code   the close status code
+     * @param reason a short reason, may be empty
+     * @throws IOException if writing fails
+     */
+    public void close(int code, String reason) throws IOException {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + Math.min(text.length, 123)];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, payload.length - 2);
+        synchronized (writeLock) {
+            if (closeSent) {
+                return;
+            }
+            writeFrame(OPCODE_CLOSE, payload, 0, payload.length);
+            closeSent = true;
+        }
+    }
+
+    private void closeQuietly(int code, String reason) {
+        try {
+            close(code, reason);
+        } catch (IOException e) {
+            // Connection already gone
+        }
+    }
+
+    private void sendFrame(int opcode, byte[] payload, int off, int length) throws IOException {
+        synchronized (writeLock) {
+            if (closeSent || !open) {
+                throw new IOException("WebSocket closed");
+            }
+            writeFrame(opcode, payload, off, length);
+        }
+    }
+
+    // Server frames are never masked
+    private void writeFrame(int opcode, byte[] payload, int off, int length) throws IOException {
+        byte[] header;
+        if (length < 126) {
+            header = new byte[]{(byte) (0x80 | opcode), (byte) length};
+        } else if (length < 65536) {
+            header = new byte[]{(byte) (0x80 | opcode), 126, (byte) (length >> 8), (byte) length};
+        } else {
+            header = new byte[10];
+            header[0] = (byte) (0x80 | opcode);
+            header[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                header[9 - i] = (byte) ((long) length >> (8 * i));
+            }
+        }
+        out.write(header);
+        out.write(payload, off, length);
+        out.flush();
+    }
+
+    private void readMessages() throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        int messageOpcode = -1;
+        while (true) {
+            int b0 = readByte();
+            int b1 = readByte();
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            if ((b0 & 0x70) != 0 || (b1 & 0x80) == 0) {
+                // Reserved bits need an extension we never negotiate, and clients must mask
+                closeQuietly(PROTOCOL_ERROR, "Invalid frame");
+                return;
+            }
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte() << 8) | readByte();
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte();
+                }
+            }
+            if (length < 0 || message.size() + length > MAX_MESSAGE_SIZE) {
+                closeQuietly(MESSAGE_TOO_BIG, "Message too big");
+                return;
+            }
+            byte[] mask = readFully(4);
+            byte[] payload = readFully((int) length);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+
+            if (opcode >= OPCODE_CLOSE) {
+                if (!fin || payload.length > 125) {
+                    closeQuietly(PROTOCOL_ERROR, "Invalid control frame");
+                    return;
+                }
+                if (opcode == OPCODE_CLOSE) {
+                    int code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : NORMAL_CLOSURE;
+                    closeQuietly(code, "");
+                    return;
+                }
+                if (opcode == OPCODE_PING) {
+                    synchronized (writeLock) {
+                        if (!closeSent) {
+                            writeFrame(OPCODE_PONG, payload, 0, payload.length);
+                        }
+                    }
+                }
+                continue; // Pongs need no answer
+            }
+
+            if (opcode == OPCODE_CONTINUATION) {
+                if (messageOpcode < 0) {
+                    closeQuietly(PROTOCOL_ERROR, "Unexpected continuation frame");
+                    return;
+                }
+            } else if (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY) {
+                if (messageOpcode >= 0) {
+                    closeQuietly(PROTOCOL_ERROR, "Expected continuation frame");
+                    return;
+                }
+                messageOpcode = opcode;
+            } else {
+                closeQuietly(PROTOCOL_ERROR, "Unknown opcode");
+                return;
+            }
+            message.write(payload);
+            if (!fin) {
+                continue;
+            }
+
+            byte[] data = message.toByteArray();
+            message.reset();
+            if (messageOpcode == OPCODE_TEXT) {
+                endpoint.onText(this, new String(data, StandardCharsets.UTF_8));
+            } else {
+                endpoint.onBinary(this, data);
+            }
+            messageOpcode = -1;
+        }
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private byte[] readFully(int n) throws IOException {
+        byte[] bytes = in.readNBytes(n);
+        if (bytes.length < n) {
+            throw new EOFException();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,34 @@
+package servlets;
+
+import server.RequestParser.RequestInfo;
+import server.Response;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+// A servlet that may finish its response after handleAsync returns, so a slow request does not
+// hold a server thread while it waits or works elsewhere. The server keeps the connection until
+// the returned stage completes, then ends the response; a stage completing exceptionally is
+// answered like a servlet throwing from handle.
+public interface AsyncServlet extends Servlet {
+
+    CompletionStage<Void> handleAsync(RequestInfo ri, Response response) throws IOException;
+
+    // Runs the request to completion on the calling thread
+    @Override
+    default void handle(RequestInfo ri, Response response) throws IOException {
+        try {
+            handleAsync(ri, response).toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        }
+    }
+}
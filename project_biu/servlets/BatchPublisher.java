@@ -0,0 +1,102 @@
+package servlets;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import graph.Message;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import logging.Log;
+import server.RequestParser;
+import server.Response;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Publishes many messages in one request. The body holds one "<topic> <value>" pair per line
+// (a '=' separator works too). Each distinct topic is looked up once, then the messages are
+// published in the order of the lines. The answer is a short JSON acknowledgement:
+// {"published":3,"rejected":1,"unknownTopics":["X"]}
+public class BatchPublisher implements Servlet {
+    private static final Log LOG = Log.get(BatchPublisher.class);
+
+    private final TopicManagerSingleton.TopicManager topicManager = TopicManagerSingleton.get();
+
+    @Override
+    public void handle(RequestParser.RequestInfo ri, Response response) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        int malformed = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(ri.getBody(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int separator = indexOfSeparator(line);
+            if (separator <= 0) {
+                malformed++;
+                continue;
+            }
+            names.add(line.substring(0, separator).trim());
+            messages.add(new Message(line.substring(separator + 1).trim()));
+        }
+
+        // Resolve every distinct topic once
+        Map<String, Topic> topics = new HashMap<>();
+        Set<String> unknown = new LinkedHashSet<>();
+        for (String name : names) {
+            if (!topics.containsKey(name) && !unknown.contains(name)) {
+                if (topicManager.containsTopic(name)) {
+                    topics.put(name, topicManager.getTopic(name));
+                } else {
+                    unknown.add(name);
+                }
+            }
+        }
+
+        int published = 0;
+        for (int i = 0; i < names.size(); i++) {
+            Topic topic = topics.get(names.get(i));
+            if (topic != null) {
+                topic.publish(messages.get(i));
+                published++;
+            }
+        }
+
+        JsonObject ack = new JsonObject();
+        ack.addProperty("published", published);
+        ack.addProperty("rejected", names.size() - published + malformed);
+        if (!unknown.isEmpty()) {
+            JsonArray unknownTopics = new JsonArray();
+            unknown.forEach(unknownTopics::add);
+            ack.add("unknownTopics", unknownTopics);
+        }
+        response.setStatus(published == 0 && names.size() + malformed > 0 ? 400 : 200);
+        response.setContentType("application/json");
+        response.write(ack.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOG.info("Closing BatchPublisher");
+    }
+
+    private static int indexOfSeparator(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '=' || Character.isWhitespace(c)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
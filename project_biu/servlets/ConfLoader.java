@@ -3,18 +3,32 @@ package servlets;
 import configs.GenericConfig;
 import configs.Graph;
 import graph.TopicManagerSingleton;
+import logging.Log;
+import server.MultipartReader;
 import server.RequestParser;
+import server.Response;
 import views.HtmlGraphWriter;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.UUID;
-
-public class ConfLoader implements Servlet {
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Loading a config stops the running agents and builds new ones, which can take a while. It
+// runs on the loader's own thread, one upload at a time, so the server threads stay free for
+// the fast requests such as /publish in the meantime.
+public class ConfLoader implements AsyncServlet {
+    private static final Log LOG = Log.get(ConfLoader.class);
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(task -> new Thread(task, "ConfLoader"));
     private final Path configFilesPath;
     private GenericConfig genericConfig;
     private final TopicManagerSingleton.TopicManager topicManager = TopicManagerSingleton.get();
@@ -29,50 +43,78 @@ public class ConfLoader implements Servlet {
     }
 
     @Override
-    public void handle(RequestParser.RequestInfo ri, OutputStream toClient) throws IOException {
-        if (ri.getContent().length == 0) {
-            sendBadRequest(toClient);
+    public CompletionStage<Void> handleAsync(RequestParser.RequestInfo ri, Response response) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                load(ri, response);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, loader);
+    }
+
+    // Saves the uploaded config, replaces the running one and answers with its graph
+    private void load(RequestParser.RequestInfo ri, Response response) throws IOException {
+        String fileName = UUID.randomUUID().toString();
+        Path filePath = configFilesPath.resolve(fileName);
+        if (!saveUpload(ri, filePath)) {
+            Files.deleteIfExists(filePath);
+            sendBadRequest(response);
             return;
         }
 
         try {
-            System.out.println("post a config file request");
-
-            // Save uploaded config file
-            byte[] fileContent = ri.getContent();
-            String fileName = UUID.randomUUID().toString();
-            Path filePath = configFilesPath.resolve(fileName);
-            Files.write(filePath, fileContent);
-            System.out.println("File " + fileName + " saved");
+            LOG.info("post a config file request");
+            LOG.info("File {} saved", fileName);
 
             // Load config and create graph
             createConfig(filePath);
-            System.out.println(topicManager.getTopics().size() + " topics created");
-            System.out.println("Config created");
+            LOG.info("{} topics created", topicManager.getTopics().size());
+            LOG.info("Config created");
 
             Graph graph = createGraph();
-            System.out.println("Graph created");
+            LOG.info("Graph created");
 
             // Generate HTML and send to client
             ArrayList<String> html = HtmlGraphWriter.getGraphHTML(graph);
-            System.out.println("Html generated for graph");
+            LOG.info("Html generated for graph");
 
-            sendOkResponse(toClient, html);
+            sendOkResponse(response, html);
 
         } catch (Exception e) {
-            sendServerError(toClient, e.getMessage());
+            sendServerError(response, e.getMessage());
         }
     }
 
     @Override
     public void close() throws IOException {
-        System.out.println("Closing ConfLoader");
+        LOG.info("Closing ConfLoader");
+        loader.shutdown();
+        try {
+            // Let a load in progress finish before its config is closed
+            loader.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
         if (genericConfig != null) {
             genericConfig.close();
         }
     }
 
+    // Streams the uploaded file, or the raw body if the request is not multipart, to disk.
+    // Returns false if nothing was uploaded
+    private boolean saveUpload(RequestParser.RequestInfo ri, Path filePath) throws IOException {
+        String boundary = MultipartReader.boundaryOf(ri.getHeader("Content-Type"));
+        try (InputStream body = ri.getBody()) {
+            if (boundary == null) {
+                return Files.copy(body, filePath) > 0;
+            }
+            MultipartReader.Part part = new MultipartReader(body, boundary).nextPart();
+            return part != null && Files.copy(part.getInputStream(), filePath) > 0;
+        }
+    }
+
     // Initializes and loads configuration from file
     private void createConfig(Path filePath) {
         if (genericConfig != null) {
@@ -94,30 +136,26 @@ public class ConfLoader implements Servlet {
     }
 
     // Sends a 200 OK response with HTML content
-    private void sendOkResponse(OutputStream toClient, ArrayList<String> html) throws IOException {
-        toClient.write("HTTP/1.1 200 OK\r\n".getBytes());
-        toClient.write("Content-Type: text/html\r\n".getBytes());
-        toClient.write("\r\n".getBytes());
+    private void sendOkResponse(Response response, ArrayList<String> html) throws IOException {
+        response.setContentType("text/html");
 
         for (String line : html) {
-            toClient.write(line.getBytes());
-            toClient.write("\n".getBytes());
+            response.write(line);
+            response.write("\n");
         }
     }
 
     // Sends a 500 Internal Server Error response
-    private void sendServerError(OutputStream toClient, String errorMessage) throws IOException {
-        toClient.write("HTTP/1.1 500 Internal Server Error\r\n".getBytes());
-        toClient.write("Content-Type: text/html\r\n".getBytes());
-        toClient.write("\r\n".getBytes());
-        toClient.write(("<html><body><h1>500 Internal Server Error</h1><p>" + errorMessage + "</p></body></html>").getBytes());
+    private void sendServerError(Response response, String errorMessage) throws IOException {
+        response.setStatus(500);
+        response.setContentType("text/html");
+        response.write("<html><body><h1>500 Internal Server Error</h1><p>" + errorMessage + "</p></body></html>");
     }
 
     // Sends a 400 Bad Request response
-    private void sendBadRequest(OutputStream toClient) throws IOException {
-        toClient.write("HTTP/1.1 400 Bad Request\r\n".getBytes());
-        toClient.write("Content-Type: text/html\r\n".getBytes());
-        toClient.write("\r\n".getBytes());
-        toClient.write("<html><body><h1>400 Bad Request</h1><p>No content received in the request.</p></body></html>".getBytes());
+    private void sendBadRequest(Response response) throws IOException {
+        response.setStatus(400);
+        response.setContentType("text/html");
+        response.write("<html><body><h1>400 Bad Request</h1><p>No content received in the request.</p></body></html>");
     }
 }
@@ -1,70 +1,267 @@
 package servlets;
 
+import logging.Log;
 import server.RequestParser;
+import server.Response;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Serves the static files of the web interface.
+//
+// Files up to MAX_CACHED_SIZE are kept in memory, larger ones only have their metadata cached
+// and are sent with FileChannel.transferTo. A watch on the directory drops the entry of a file
+// as soon as it is changed or deleted, so the next request reads it again. Every file carries
+// an ETag and a Last-Modified date, and clients revalidating with If-None-Match or
+// If-Modified-Since get a 304 without a body.
 public class HtmlLoader implements Servlet {
+    private static final Log LOG = Log.get(HtmlLoader.class);
+
+    private static final long MAX_CACHED_SIZE = 256 * 1024;
 
     private final Path htmlFilesPath;
+    private final Map<String, StaticFile> cache = new ConcurrentHashMap<>();
+    private final WatchService watcher;
 
     public HtmlLoader(String htmlFilesPath) {
-        this.htmlFilesPath = Path.of(htmlFilesPath);
+        this.htmlFilesPath = Path.of(htmlFilesPath).toAbsolutePath().normalize();
 
         // Create directory if it doesn't exist
         if (!this.htmlFilesPath.toFile().exists()) {
             this.htmlFilesPath.toFile().mkdir();
         }
+
+        // Watch the directory before anything is cached, so no change can be missed
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            this.htmlFilesPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            WatchService watched = watchService;
+            Thread watchThread = new Thread(() -> watchFiles(watched), "HtmlLoaderWatcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        } catch (IOException e) {
+            LOG.warn("Cannot watch {}, static files will not be cached: {}", htmlFilesPath, e.getMessage());
+            watchService = null;
+        }
+        this.watcher = watchService;
     }
 
     @Override
-    public void handle(RequestParser.RequestInfo ri, OutputStream toClient) throws IOException {
-        System.out.println("get html file request");
-
+    public void handle(RequestParser.RequestInfo ri, Response response) throws IOException {
         String[] uriSegments = ri.getUriSegments();
         String fileName = uriSegments[uriSegments.length - 1];
-        System.out.println("get request for file: " + fileName);
+        LOG.debug("get request for file: {}", fileName);
 
-        // Check if file exists and respond accordingly
-        if (checkFileExists(fileName)) {
-            System.out.println("File found");
-            sendFile(toClient, fileName, "200 OK");
-        } else {
-            System.out.println("File not found");
-            send404(toClient);
+        StaticFile file = lookup(fileName);
+        if (file == null) {
+            LOG.debug("File not found");
+            send404(response);
+            return;
+        }
+
+        response.setHeader("ETag", file.etag);
+        response.setHeader("Last-Modified", file.lastModified);
+        response.setHeader("Cache-Control", "no-cache");
+        if (isNotModified(ri, file)) {
+            response.setStatus(304);
+            return;
+        }
+        response.setStatus(200);
+        response.setContentType(file.contentType);
+        if (file.content != null) {
+            response.write(file.content);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ)) {
+            response.sendFile(channel, 0, file.size);
         }
     }
 
     @Override
     public void close() throws IOException {
-        System.out.println("Closing HtmlLoader");
+        LOG.info("Closing HtmlLoader");
+        if (watcher != null) {
+            watcher.close();
+        }
+        cache.clear();
     }
 
-    // Returns true if file exists in htmlFilesPath
-    private boolean checkFileExists(String fileName) {
-        return htmlFilesPath.resolve(fileName).toFile().exists();
+    // Returns the file a request names, or null if it does not exist or lies outside the directory
+    private StaticFile lookup(String fileName) throws IOException {
+        Path path;
+        try {
+            path = htmlFilesPath.resolve(fileName).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!path.startsWith(htmlFilesPath) || path.equals(htmlFilesPath)) {
+            return null; // "..", absolute names and the like
+        }
+        String key = htmlFilesPath.relativize(path).toString();
+        if (watcher == null) {
+            return load(path);
+        }
+        try {
+            // A watch event removing the entry waits for a load in progress, so no stale
+            // entry can remain once the event is handled
+            return cache.computeIfAbsent(key, name -> {
+                try {
+                    return load(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
-    // Sends an HTML file with the given HTTP status
-    private void sendFile(OutputStream toClient, String fileName, String status) throws IOException {
-        Path filePath = htmlFilesPath.resolve(fileName);
-        byte[] fileContent = Files.readAllBytes(filePath);
+    private static StaticFile load(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        byte[] content = attributes.size() <= MAX_CACHED_SIZE ? Files.readAllBytes(path) : null;
+        long size = content != null ? content.length : attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        return new StaticFile(path, content, size, modified);
+    }
 
-        toClient.write(("HTTP/1.1 " + status + "\r\n").getBytes());
-        toClient.write("Content-Type: text/html\r\n".getBytes());
-        toClient.write(("Content-Length: " + fileContent.length + "\r\n").getBytes());
-        toClient.write("\r\n".getBytes());
-        toClient.write(fileContent);
+    // If-None-Match takes precedence over If-Modified-Since, as RFC 9110 requires
+    private static boolean isNotModified(RequestParser.RequestInfo ri, StaticFile file) {
+        String ifNoneMatch = ri.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(file.etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = ri.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().getEpochSecond();
+                return file.modified / 1000 <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Runs on the watcher thread until the servlet is closed
+    private void watchFiles(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        cache.clear(); // Events were lost, any entry may be stale
+                    } else {
+                        String name = event.context().toString();
+                        cache.remove(name);
+                        LOG.debug("File changed: {}", name);
+                    }
+                }
+                if (!key.reset()) {
+                    cache.clear();
+                    LOG.warn("Stopped watching {}", htmlFilesPath);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Servlet was closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     // Sends a 404 Not Found response
-    private void send404(OutputStream toClient) throws IOException {
-        toClient.write("HTTP/1.1 404 Not Found\r\n".getBytes());
-        toClient.write("Content-Type: text/plain\r\n".getBytes());
-        toClient.write("Content-Length: 0\r\n".getBytes());
-        toClient.write("\r\n".getBytes());
+    private void send404(Response response) {
+        response.setStatus(404);
+        response.setContentType("text/plain");
+    }
+
+    private static String contentType(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        String extension = name.substring(name.lastIndexOf('.') + 1);
+        switch (extension) {
+            case "html":
+            case "htm":
+                return "text/html";
+            case "css":
+                return "text/css";
+            case "js":
+                return "application/javascript";
+            case "json":
+                return "application/json";
+            case "svg":
+                return "image/svg+xml";
+            case "png":
+                return "image/png";
+            case "ico":
+                return "image/x-icon";
+            case "txt":
+                return "text/plain";
+            default:
+                return "application/octet-stream";
+        }
+    }
+
+    // A file with everything needed to answer for it, content only if small enough to cache
+    private static class StaticFile {
+        private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+        private final Path path;
+        private final byte[] content;
+        private final long size;
+        private final long modified;
+        private final String contentType;
+        private final String etag;
+        private final String lastModified;
+
+        StaticFile(Path path, byte[] content, long size, long modified) {
+            this.path = path;
+            this.content = content;
+            this.size = size;
+            this.modified = modified;
+            this.contentType = contentType(path);
+            this.etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+            this.lastModified = HTTP_DATE.format(Instant.ofEpochMilli(modified));
+        }
     }
 }
@@ -0,0 +1,28 @@
+package servlets;
+
+import logging.Log;
+import metrics.MetricsRegistry;
+import server.RequestParser;
+import server.Response;
+
+import java.io.IOException;
+
+// Exposes the metrics registry in the Prometheus text format, for scrapers and for a quick look
+// with curl: request counts and latencies per route, publishes and fan-out per topic, queue
+// depth, queue wait, drops and callback time per parallel agent.
+public class MetricsExporter implements Servlet {
+    private static final Log LOG = Log.get(MetricsExporter.class);
+
+    private final MetricsRegistry metrics = MetricsRegistry.get();
+
+    @Override
+    public void handle(RequestParser.RequestInfo ri, Response response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.write(metrics.scrape());
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOG.info("Closing MetricsExporter");
+    }
+}
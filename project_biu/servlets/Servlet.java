@@ -1,11 +1,11 @@
 package servlets;
 
 import server.RequestParser.RequestInfo;
+import server.Response;
 
 import java.io.IOException;
-import java.io.OutputStream;
 
 public interface Servlet {
-    void handle(RequestInfo ri, OutputStream toClient) throws IOException;
+    void handle(RequestInfo ri, Response response) throws IOException;
     void close() throws IOException;
 }
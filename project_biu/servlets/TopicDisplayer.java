@@ -3,11 +3,12 @@ package servlets;
 import graph.Message;
 import graph.Topic;
 import server.RequestParser;
+import server.Response;
 import graph.TopicManagerSingleton;
+import logging.Log;
 import views.HtmlTableWriter;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -15,9 +16,10 @@ import java.util.Map;
 
 
 public class TopicDisplayer implements Servlet {
+    private static final Log LOG = Log.get(TopicDisplayer.class);
 
     @Override
-    public void handle(RequestParser.RequestInfo ri, OutputStream toClient) throws IOException {
+    public void handle(RequestParser.RequestInfo ri, Response response) throws IOException {
         if (ri.getParameters().size() == 2) {
             try {
                 String topic = ri.getParameters().get("topicName");
@@ -29,36 +31,32 @@ public class TopicDisplayer implements Servlet {
                 Collection<Topic> topics = TopicManagerSingleton.get().getTopics();
                 Map<String, String> topicMap = new HashMap<>();
                 for (Topic t : topics) {
-                    topicMap.put(t.getName(), t.getLastMessage().orElse(new Message("0.0")).asText);
+                    topicMap.put(t.getName(), t.getLastMessage().orElse(new Message("0.0")).asText());
                 }
                 ArrayList<String> tableHtml = HtmlTableWriter.getTableHtml(topicMap);
-                System.out.println("Html generated for table");
-                toClient.write("HTTP/1.1 200 OK\r\n".getBytes());
-                toClient.write("Content-Type: text/html\r\n".getBytes());
-                toClient.write("\r\n".getBytes());
+                LOG.debug("Html generated for table");
+                response.setContentType("text/html");
                 for (String line : tableHtml) {
-                    toClient.write(line.getBytes());
-                    toClient.write("\n".getBytes());
+                    response.write(line);
+                    response.write("\n");
                 }
             } catch (Exception e) {
-                System.out.println("Error: " + e.getMessage());
-                toClient.write("HTTP/1.1 500 Internal Server Error\r\n".getBytes());
-                toClient.write("Content-Type: text/html\r\n".getBytes());
-                toClient.write("\r\n".getBytes());
-                toClient.write("<html><body><h1>500 Internal Server Error</h1><p>".getBytes());
-                toClient.write(e.getMessage().getBytes());
+                LOG.warn("Error: {}", e.getMessage());
+                response.setStatus(500);
+                response.setContentType("text/html");
+                response.write("<html><body><h1>500 Internal Server Error</h1><p>");
+                response.write(String.valueOf(e.getMessage()));
             }
 
         } else {
-            toClient.write("HTTP/1.1 400 Bad Request\r\n".getBytes());
-            toClient.write("Content-Type: text/html\r\n".getBytes());
-            toClient.write("\r\n".getBytes());
-            toClient.write("<html><body><h1>400 Bad Request</h1><p>No content received in the request.</p></body></html>".getBytes());
+            response.setStatus(400);
+            response.setContentType("text/html");
+            response.write("<html><body><h1>400 Bad Request</h1><p>No content received in the request.</p></body></html>");
         }
     }
 
     @Override
     public void close() throws IOException {
-        System.out.println("Closing TopicDisplayer");
+        LOG.info("Closing TopicDisplayer");
     }
 }
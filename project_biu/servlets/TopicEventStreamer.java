@@ -0,0 +1,186 @@
+package servlets;
+
+import com.google.gson.JsonObject;
+import graph.Message;
+import graph.Topic;
+import graph.TopicListener;
+import graph.TopicManagerSingleton;
+import logging.Log;
+import server.RequestParser;
+import server.Response;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Streams topic updates to dashboards as Server-Sent Events (text/event-stream).
+// Each client only receives the latest value of the topics that changed since its last
+// update, and updates are sent at most every COALESCE_MILLIS, so bursts on a busy topic
+// collapse into one event instead of piling up behind a slow browser.
+//
+// No server thread is held while a dashboard is connected: publishes schedule a send for the
+// client, which runs on a virtual thread, and the response stays open until the client goes
+// away or the servlet is closed.
+public class TopicEventStreamer implements AsyncServlet {
+    private static final Log LOG = Log.get(TopicEventStreamer.class);
+
+    private static final long COALESCE_MILLIS = 100;
+    private static final long HEARTBEAT_MILLIS = 15000;
+
+    private final TopicManagerSingleton.TopicManager topicManager = TopicManagerSingleton.get();
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    // Delays sends to coalesce updates and triggers heartbeats, the writes run on senders
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "EventStreamerTimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // A write blocked by a slow client only holds a virtual thread
+    private final ExecutorService senders = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("EventStreamer-", 0).factory());
+    private volatile boolean closed;
+
+    public TopicEventStreamer() {
+        timer.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public CompletionStage<Void> handleAsync(RequestParser.RequestInfo ri, Response response) throws IOException {
+        response.setContentType("text/event-stream");
+        response.setHeader("Cache-Control", "no-cache");
+
+        Client client = new Client(response);
+        clients.add(client);
+        topicManager.addListener(client);
+        // Start with a snapshot so the dashboard does not wait for the next publish; a value
+        // the listener already got is newer
+        for (Topic topic : topicManager.getTopics()) {
+            topic.getLastMessage().ifPresent(message -> client.pending.putIfAbsent(topic.getName(), message));
+        }
+        response.write("retry: 2000\n\n");
+        client.send(); // Sends are held back until this first one
+        return client.done;
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOG.info("Closing TopicEventStreamer");
+        closed = true;
+        clients.forEach(Client::schedule); // Each client ends its stream on its next send
+        timer.shutdown(); // Sends still delayed run, find the senders shut down and end their client
+        senders.shutdown();
+    }
+
+    // Marks the clients that have been quiet for a heartbeat interval
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        for (Client client : clients) {
+            if (now - client.lastSent >= HEARTBEAT_MILLIS) {
+                client.heartbeatDue = true;
+                client.schedule();
+            }
+        }
+    }
+
+    private class Client implements TopicListener {
+        private final Response response;
+        // Latest unsent message per topic
+        private final Map<String, Message> pending = new ConcurrentHashMap<>();
+        // Set while a send is scheduled or running, so only one thread writes the response
+        private final AtomicBoolean scheduled = new AtomicBoolean(true);
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile long lastSent;
+        private volatile boolean heartbeatDue;
+
+        Client(Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public void onPublish(Topic topic, Message message) {
+            pending.put(topic.getName(), message);
+            schedule();
+        }
+
+        // Queues a send unless one is queued or running, which sees the new updates anyway
+        void schedule() {
+            if (done.isDone() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            long delay = lastSent + COALESCE_MILLIS - System.currentTimeMillis();
+            try {
+                if (delay > 0 && !closed) {
+                    // Let a burst of updates coalesce
+                    timer.schedule(() -> execute(this::send), delay, TimeUnit.MILLISECONDS);
+                } else {
+                    execute(this::send);
+                }
+            } catch (RejectedExecutionException e) {
+                end(); // Servlet closed
+            }
+        }
+
+        private void execute(Runnable task) {
+            try {
+                senders.execute(task);
+            } catch (RejectedExecutionException e) {
+                end();
+            }
+        }
+
+        // Writes what is pending. Runs on one thread at a time, which owns the flag
+        void send() {
+            if (closed) {
+                end();
+                return;
+            }
+            try {
+                if (!pending.isEmpty()) {
+                    writePending();
+                } else if (heartbeatDue) {
+                    response.write(": heartbeat\n\n");
+                }
+                heartbeatDue = false;
+                response.flush();
+                lastSent = System.currentTimeMillis();
+            } catch (IOException e) {
+                end(); // Client went away
+                return;
+            }
+            scheduled.set(false);
+            // Updates that found the flag still set are picked up here
+            if (!pending.isEmpty() || heartbeatDue || closed) {
+                schedule();
+            }
+        }
+
+        private void writePending() throws IOException {
+            Iterator<Map.Entry<String, Message>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Message> update = it.next();
+                it.remove();
+                JsonObject data = new JsonObject();
+                data.addProperty("topic", update.getKey());
+                data.addProperty("value", update.getValue().asText());
+                response.write("event: topic\ndata: " + data + "\n\n");
+            }
+        }
+
+        // Stops listening and lets the server finish the response
+        private void end() {
+            topicManager.removeListener(this);
+            clients.remove(this);
+            done.complete(null);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package servlets;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import logging.Log;
+import server.RequestParser;
+import server.Response;
+
+import java.io.IOException;
+
+// Topic values as JSON for programmatic pollers:
+// {"version":42,"full":true,"topics":[{"name":"A","value":"3","version":40}]}
+// With ?since=<version> only the topics changed after that version are listed. When the topics
+// were replaced by a new configuration since then, the full state is returned with "full":true.
+public class TopicStateApi implements Servlet {
+    private static final Log LOG = Log.get(TopicStateApi.class);
+
+    private final TopicManagerSingleton.TopicManager topicManager = TopicManagerSingleton.get();
+
+    @Override
+    public void handle(RequestParser.RequestInfo ri, Response response) throws IOException {
+        long since = 0;
+        String sinceParameter = ri.getParameter("since");
+        if (sinceParameter != null) {
+            try {
+                since = Long.parseLong(sinceParameter);
+            } catch (NumberFormatException e) {
+                response.setStatus(400);
+                response.setContentType("application/json");
+                response.write("{\"error\":\"since must be a number\"}");
+                return;
+            }
+        }
+
+        // Read the version first: a topic changing during the scan is listed again next time
+        long version = topicManager.getVersion();
+        boolean full = since < topicManager.getClearedAtVersion() || since <= 0;
+        JsonArray topics = new JsonArray();
+        for (Topic topic : topicManager.getTopics()) {
+            long topicVersion = topic.getVersion();
+            if (full || topicVersion > since) {
+                JsonObject entry = new JsonObject();
+                entry.addProperty("name", topic.getName());
+                entry.addProperty("value", topic.getLastMessage().map(message -> message.asText()).orElse(null));
+                entry.addProperty("version", topicVersion);
+                topics.add(entry);
+            }
+        }
+
+        JsonObject state = new JsonObject();
+        state.addProperty("version", version);
+        state.addProperty("full", full);
+        state.add("topics", topics);
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-cache");
+        response.write(state.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOG.info("Closing TopicStateApi");
+    }
+}
@@ -0,0 +1,278 @@
+package servlets;
+
+import graph.Message;
+import graph.Topic;
+import graph.TopicListener;
+import graph.TopicManagerSingleton;
+import logging.Log;
+import server.RequestParser;
+import server.Response;
+import server.WebSocketEndpoint;
+import server.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Publish/subscribe over one WebSocket connection.
+//
+// Text messages are commands, one per message:
+//   pub <topic> <value>    publishes a message to an existing topic
+//   sub <topic>|*          receives the messages published on a topic, or on every topic
+//   unsub <topic>|*        stops receiving them
+//   format text|binary     chooses how updates are sent (text by default)
+// Updates are sent as "msg <topic> <value>", errors as "err <reason>".
+//
+// Binary messages carry records of [name length: 1 byte][name: UTF-8][value: 8-byte double],
+// big endian, as many as fit in the message. A binary message from the client publishes each
+// record in order; in binary format the updates are sent back as records too.
+//
+// Each connection listens on its topics like an agent subscribes to them. Updates are handed
+// to a sender thread that keeps only the latest unsent value per topic, so a slow client never
+// holds up the publishing thread. Subscriptions are kept by name, so they carry over to the
+// topics of a newly loaded configuration once those are created.
+public class TopicWebSocket implements Servlet {
+    private static final Log LOG = Log.get(TopicWebSocket.class);
+
+    // How often an idle sender checks whether its subscriptions need to be resolved again
+    private static final long RESUBSCRIBE_MILLIS = 1000;
+
+    private final TopicManagerSingleton.TopicManager topicManager = TopicManagerSingleton.get();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void handle(RequestParser.RequestInfo ri, Response response) throws IOException {
+        response.upgrade(new Connection());
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOG.info("Closing TopicWebSocket");
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private class Connection implements WebSocketEndpoint, TopicListener {
+        // Subscribed names, and the topics they resolve to in the current generation
+        private final Set<String> subscribedNames = ConcurrentHashMap.newKeySet();
+        private final Map<String, Topic> subscriptions = new ConcurrentHashMap<>();
+        private long topicsGeneration = topicManager.getGeneration(); // Guarded by this
+        private final Map<String, Message> pending = new ConcurrentHashMap<>();
+        private final Semaphore signal = new Semaphore(0);
+        private volatile boolean allTopics;
+        private volatile boolean binary;
+        private volatile boolean open = true;
+        private WebSocketSession session;
+
+        @Override
+        public void onOpen(WebSocketSession session) {
+            this.session = session;
+            connections.add(this);
+            Thread.ofVirtual().name("WebSocketSender").start(this::sendUpdates);
+        }
+
+        @Override
+        public void onText(WebSocketSession session, String text) throws IOException {
+            String[] parts = text.trim().split("\\s+", 3);
+            switch (parts[0]) {
+                case "pub":
+                    if (parts.length < 3) {
+                        session.sendText("err usage: pub <topic> <value>");
+                    } else {
+                        publish(parts[1], new Message(parts[2]));
+                    }
+                    break;
+                case "sub":
+                    if (parts.length < 2) {
+                        session.sendText("err usage: sub <topic>");
+                    } else {
+                        subscribe(parts[1]);
+                    }
+                    break;
+                case "unsub":
+                    if (parts.length < 2) {
+                        session.sendText("err usage: unsub <topic>");
+                    } else {
+                        unsubscribe(parts[1]);
+                    }
+                    break;
+                case "format":
+                    binary = parts.length > 1 && parts[1].equals("binary");
+                    break;
+                default:
+                    session.sendText("err unknown command " + parts[0]);
+            }
+        }
+
+        @Override
+        public void onBinary(WebSocketSession session, byte[] data) throws IOException {
+            ByteBuffer records = ByteBuffer.wrap(data);
+            while (records.hasRemaining()) {
+                int nameLength = records.get() & 0xFF;
+                if (records.remaining() < nameLength + Double.BYTES) {
+                    session.sendText("err truncated record");
+                    return;
+                }
+                String name = new String(data, records.position(), nameLength, StandardCharsets.UTF_8);
+                records.position(records.position() + nameLength);
+                publish(name, new Message(records.getDouble()));
+            }
+        }
+
+        @Override
+        public void onClose(WebSocketSession session) {
+            open = false;
+            connections.remove(this);
+            if (allTopics) {
+                topicManager.removeListener(this);
+            }
+            synchronized (this) {
+                subscriptions.values().forEach(topic -> topic.removeListener(this));
+            }
+            signal.release();
+        }
+
+        @Override
+        public void onPublish(Topic topic, Message message) {
+            if (pending.put(topic.getName(), message) == null) {
+                signal.release();
+            }
+        }
+
+        void close() {
+            try {
+                session.close(WebSocketSession.GOING_AWAY, "Server shutting down");
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+
+        private void publish(String name, Message message) throws IOException {
+            if (!topicManager.containsTopic(name)) {
+                session.sendText("err unknown topic " + name);
+                return;
+            }
+            topicManager.getTopic(name).publish(message);
+        }
+
+        private void subscribe(String name) throws IOException {
+            if (name.equals("*")) {
+                synchronized (this) {
+                    allTopics = true;
+                    topicManager.addListener(this);
+                }
+                return;
+            }
+            if (!topicManager.containsTopic(name)) {
+                session.sendText("err unknown topic " + name);
+                return;
+            }
+            synchronized (this) {
+                resubscribe();
+                Topic topic = topicManager.getTopic(name);
+                subscribedNames.add(topic.getName());
+                subscriptions.put(topic.getName(), topic);
+                topic.addListener(this);
+            }
+        }
+
+        private void unsubscribe(String name) {
+            synchronized (this) {
+                if (name.equals("*")) {
+                    allTopics = false;
+                    topicManager.removeListener(this);
+                    subscriptions.values().forEach(topic -> topic.addListener(this));
+                    return;
+                }
+                subscribedNames.remove(name.toUpperCase());
+                Topic topic = subscriptions.remove(name.toUpperCase());
+                if (topic != null) {
+                    topic.removeListener(this); // Also while subscribed to *, the name is dropped for good
+                }
+            }
+        }
+
+        // Drops the topic handles once a new configuration replaced the topics, and resolves the
+        // subscribed names whose topics exist by now
+        private synchronized void resubscribe() {
+            if (!open) {
+                return;
+            }
+            long generation = topicManager.getGeneration();
+            if (generation != topicsGeneration) {
+                topicsGeneration = generation;
+                subscriptions.values().forEach(topic -> topic.removeListener(this));
+                subscriptions.clear();
+            }
+            if (subscriptions.size() == subscribedNames.size()) {
+                return;
+            }
+            for (String name : subscribedNames) {
+                if (!subscriptions.containsKey(name) && topicManager.containsTopic(name)) {
+                    Topic topic = topicManager.getTopic(name);
+                    subscriptions.put(name, topic);
+                    topic.addListener(this);
+                }
+            }
+        }
+
+        // Runs on the sender thread until the connection closes
+        private void sendUpdates() {
+            try {
+                while (open) {
+                    if (signal.tryAcquire(RESUBSCRIBE_MILLIS, TimeUnit.MILLISECONDS)) {
+                        signal.drainPermits();
+                        if (binary) {
+                            sendBinaryUpdates();
+                        } else {
+                            sendTextUpdates();
+                        }
+                    }
+                    resubscribe();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // Connection closed, the session cleans up
+            }
+        }
+
+        private void sendTextUpdates() throws IOException {
+            Iterator<Map.Entry<String, Message>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Message> update = it.next();
+                it.remove();
+                session.sendText("msg " + update.getKey() + " " + update.getValue().asText());
+            }
+        }
+
+        private void sendBinaryUpdates() throws IOException {
+            ByteBuffer records = ByteBuffer.allocate(8 * 1024);
+            Iterator<Map.Entry<String, Message>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Message> update = it.next();
+                byte[] name = update.getKey().getBytes(StandardCharsets.UTF_8);
+                if (name.length > 255) {
+                    it.remove(); // Cannot be encoded, such clients have to use the text format
+                    continue;
+                }
+                if (records.remaining() < 1 + name.length + Double.BYTES) {
+                    session.sendBinary(records.array(), 0, records.position());
+                    records.clear();
+                }
+                it.remove();
+                records.put((byte) name.length).put(name).putDouble(update.getValue().asDouble);
+            }
+            if (records.position() > 0) {
+                session.sendBinary(records.array(), 0, records.position());
+            }
+        }
+    }
+}